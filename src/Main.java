@@ -4,7 +4,6 @@ import javax.crypto.*;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
 
 public class Main {
     public static void main(String[] args) throws NoSuchAlgorithmException, InvalidAlgorithmParameterException, NoSuchPaddingException, IllegalBlockSizeException, BadPaddingException, InvalidKeyException {
@@ -13,20 +12,19 @@ public class Main {
         KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
         keyGenerator.init(256);
         SecretKey secretKey = keyGenerator.generateKey();
-        SecureRandom secureRandom = new SecureRandom();
-        byte[] iv = new byte[12];
-        secureRandom.nextBytes(iv);
+        KeyRing keyRing = new KeyRing();
+        keyRing.add(1, secretKey);
         PasswordSystem sys = new PasswordSystem();
 
 
-        User u1 = new User("BuddyHolly", sys.encryptPwd("FrenchFry", secretKey, iv));
+        User u1 = new User("BuddyHolly", sys.hashPwd("FrenchFry"));
         sys.addUser(u1);
         sys.addAdministrator(u1);
 
-        User u2 = new User("SirDude", sys.encryptPwd("ChickenWingz", secretKey, iv));
+        User u2 = new User("SirDude", sys.hashPwd("ChickenWingz"));
         sys.addUser(u2);
 
-        User u3 = new User("ManBat", sys.encryptPwd("KingBurger", secretKey, iv));
+        User u3 = new User("ManBat", sys.hashPwd("KingBurger"));
         sys.addUser(u3);
 
 
@@ -38,17 +36,17 @@ public class Main {
         pv.needSpecial(true);
         pv.needNums(true);
 
-            Account ac1 = new Account("BuddyHolly123", sys.encryptPwd(PasswordGenerator.generatePassword(pv), secretKey, iv), pv);
+            Account ac1 = new Account("BuddyHolly123", sys.sealPwd(PasswordGenerator.generatePassword(pv), keyRing), pv);
             u1.addAccount("Netflix", ac1);
 
             String pw = "LuckyDuck!2";
 
             if (pv.verifyPassword(pw)){
-                SharedAccount sc1 = new SharedAccount("SirDudeALot", sys.encryptPwd(pw, secretKey, iv), pv, sys.getAdmins(), sys.getUsers());
+                SharedAccount sc1 = new SharedAccount("SirDudeALot", sys.sealPwd(pw, keyRing), pv, sys.getAdmins(), sys.getUsers());
             }
 
 
-            User verified = sys.verifyUser("BuddyHolly", "FrenchFry", secretKey, iv);
+            User verified = sys.verifyUser("BuddyHolly", "FrenchFry");
 
             System.out.println(verified.getUsername());
 
@@ -1,8 +1,8 @@
 package PasswordManager;
 
+import java.nio.ByteBuffer;
+import java.util.Base64;
 import java.util.Date;
-import java.util.Map;
-import java.util.HashMap;
 
 /**
  * Account class used for password manager
@@ -13,14 +13,35 @@ public class Account {
     public enum Verify {
         INCORRECT, 				/** Indicates a failed verification or operation */
         CORRECT, 				/** Indicates a successful verification or operation */
-        USER_ERROR				/** Indicates an error via improper user */
+        USER_ERROR,				/** Indicates an error via improper user */
+        CONFLICT				/** Indicates the account changed since the version the caller read */
     }
     
     private String username;
-    private String password;
-    private Date dateCreated;
+    private volatile String password;
+    private volatile Date dateCreated;
+    private volatile long version; // bumped by every password change and stored with the account, only written while holding its lock
     private PasswordVerifier passwordVerifier;
-    private Map<Date, String> oldPasswords = new HashMap<>();
+    private PasswordHistory oldPasswords;
+    private Journal journal; // null unless the account belongs to a User in a journaled system
+    private String owner;    // username of the User holding the account, when journaled
+    private String label;    // label the account is held under, when journaled
+    private static final long ANY_VERSION = -1; // versions start at 0, so this never matches one
+
+    /** The password, date, version and history of an account, read together so they match */
+    static final class Snapshot {
+        final String password;
+        final Date dateCreated;
+        final long version;
+        final PasswordHistory oldPasswords; // a copy, unchanged by later updates
+
+        Snapshot(String password, Date dateCreated, long version, PasswordHistory oldPasswords) {
+            this.password = password;
+            this.dateCreated = dateCreated;
+            this.version = version;
+            this.oldPasswords = oldPasswords;
+        }
+    }
 
     /**
      * Constructs new Account with the specified credentials
@@ -34,25 +55,216 @@ public class Account {
         this.passwordVerifier = passwordVerifier;
         this.password = password;
         this.dateCreated = new Date();
+        this.oldPasswords = new PasswordHistory(passwordVerifier.historyDepth());
+    }
+
+    /**
+     * Restores an Account with its saved creation date, password history and version
+     *
+     * @param username, username for account
+     * @param password, current password for account
+     * @param passwordVerifier, password policy verifier (cannot be null)
+     * @param dateCreated, date the current password was set
+     * @param oldPasswords, history of previous passwords
+     * @param version, the version the account was saved at
+     */
+    Account(String username, String password, PasswordVerifier passwordVerifier, Date dateCreated,
+            PasswordHistory oldPasswords, long version) {
+        this.username = username;
+        this.passwordVerifier = passwordVerifier;
+        this.password = password;
+        this.dateCreated = dateCreated;
+        this.oldPasswords = oldPasswords;
+        this.version = version;
     }
     
     /**
      * Updates account password after verifying it meets policy requirements
-     * Stores old password in password history (oldPasswords HashMap)
+     * Stores old password in password history (bounded by the verifier's history depth)
      *
      * @param newPassword, the proposed new password
      * @return Verify.CORRECT if update was successful, Verify.INCORRECT if new password fails verification
      */
     public Verify update(String newPassword) {
-        if (passwordVerifier.verifyNewPassword(newPassword, oldPasswords)) {
+        return change(newPassword, null, ANY_VERSION);
+    }
+
+    /**
+     * Updates account password only if nobody changed it since the caller read expectedVersion
+     * The new password is verified before the version is compared, so the account is only locked
+     * for the compare and the write
+     *
+     * @param newPassword, the proposed new password
+     * @param expectedVersion, the version the caller read with getVersion
+     * @return Verify.CORRECT if update was successful, Verify.INCORRECT if new password fails verification,
+     *         Verify.CONFLICT if the account was changed since expectedVersion
+     */
+    public Verify update(String newPassword, long expectedVersion) {
+        return change(newPassword, null, expectedVersion);
+    }
+
+    /**
+     * Updates an account whose password is sealed in an Envelope, given the new password in plaintext
+     * The plaintext is checked against the policy and the history, then sealed with the ring's primary key.
+     * The current password is opened so the history remembers plaintexts rather than cipher texts, which
+     * differ every time a password is sealed
+     *
+     * @param newPassword, the proposed new password, in plaintext
+     * @param ring, the keys, holding the key the current password was sealed with and the primary key
+     * @return Verify.CORRECT if update was successful, Verify.INCORRECT if new password fails verification
+     */
+    public Verify update(String newPassword, KeyRing ring) {
+        return change(newPassword, ring, ANY_VERSION);
+    }
+
+    /**
+     * Updates an account whose password is sealed in an Envelope only if nobody changed it since the
+     * caller read expectedVersion, as update(newPassword, ring)
+     *
+     * @param newPassword, the proposed new password, in plaintext
+     * @param ring, the keys, holding the key the current password was sealed with and the primary key
+     * @param expectedVersion, the version the caller read with getVersion
+     * @return Verify.CORRECT if update was successful, Verify.INCORRECT if new password fails verification,
+     *         Verify.CONFLICT if the account was changed since expectedVersion
+     */
+    public Verify update(String newPassword, KeyRing ring, long expectedVersion) {
+        return change(newPassword, ring, expectedVersion);
+    }
+
+    private Verify change(String newPassword, KeyRing ring, long expectedVersion) {
+        if (expectedVersion != ANY_VERSION && version != expectedVersion) {
+            return Verify.CONFLICT;
+        }
+        if (!passwordVerifier.verifyNewPassword(newPassword, oldPasswords)) {
             return Verify.INCORRECT;
         }
-        oldPasswords.put(dateCreated, password);
-        password = newPassword;
-        dateCreated = new Date();
+        String stored = ring == null ? newPassword : Envelope.sealPassword(newPassword, ring);
+        Date now;
+        long changed;
+        synchronized (this) {
+            if (expectedVersion != ANY_VERSION && version != expectedVersion) {
+                return Verify.CONFLICT;
+            }
+            now = new Date();
+            long replaced = replacedFingerprint(ring);
+            if (journal != null) {
+                journal.logUpdate(owner, label, stored, now, version + 1, replaced);
+            }
+            applyUpdate(stored, now, replaced);
+            changed = version;
+        }
+        passwordChanged(changed, now);
         return Verify.CORRECT;
     }
 
+    /**
+     * Fingerprints the current password for the history, opening it first if the ring is given
+     */
+    private long replacedFingerprint(KeyRing ring) {
+        if (ring == null) {
+            return oldPasswords.fingerprint(password);
+        }
+        byte[] plainText = Envelope.open(ByteBuffer.wrap(Base64.getDecoder().decode(password)), ring);
+        try {
+            return oldPasswords.fingerprint(plainText);
+        } finally {
+            Credentials.wipe(plainText);
+        }
+    }
+
+    /**
+     * Called after update changes the password, outside the account's lock; does nothing by default
+     *
+     * @param newVersion, the version the change made
+     * @param date, the time the new password was set
+     */
+    void passwordChanged(long newVersion, Date date) {
+    }
+
+    /**
+     * Replaces the password without verifying or journaling it, moving the current one into the history
+     *
+     * @param newPassword, the new password
+     * @param date, the time the new password was set
+     * @param replaced, the fingerprint the history remembers the current password by
+     */
+    synchronized void applyUpdate(String newPassword, Date date, long replaced) {
+        oldPasswords.add(dateCreated, replaced);
+        password = newPassword;
+        dateCreated = date;
+        version++;
+    }
+
+    /**
+     * Applies a journaled password change on replay, unless the account already has it, such as when the
+     * change reached the VaultStore before a crash kept the journal from being emptied
+     *
+     * @param newPassword, the new password
+     * @param date, the time the new password was set
+     * @param newVersion, the version the change made
+     * @param replaced, the fingerprint the history remembers the replaced password by
+     * @return true if the change was applied, false if the account was already at or past newVersion
+     */
+    synchronized boolean replayUpdate(String newPassword, Date date, long newVersion, long replaced) {
+        if (newVersion <= version) {
+            return false;
+        }
+        applyUpdate(newPassword, date, replaced);
+        version = newVersion;
+        return true;
+    }
+
+    /**
+     * Swaps the stored password for the same password sealed another way, such as under a new key
+     * Leaves the history and creation date alone, and does nothing if the password changed meanwhile
+     *
+     * @param expected, the stored password the replacement was made from
+     * @param replacement, the same password sealed again
+     * @return true if the password was replaced, false if it no longer matched expected
+     */
+    synchronized boolean replaceSealedPassword(String expected, String replacement) {
+        if (!expected.equals(password)) {
+            return false;
+        }
+        password = replacement;
+        return true;
+    }
+
+    /**
+     * Logs changes to this account to a journal from now on
+     *
+     * @param journal, the journal of the owning User's system
+     * @param owner, username of the User holding the account
+     * @param label, label the account is held under
+     */
+    void bind(Journal journal, String owner, String label) {
+        this.journal = journal;
+        this.owner = owner;
+        this.label = label;
+    }
+
+    /**
+     * Logs a membership change of this account, if it is journaled
+     *
+     * @param added, true if the member is added, false if removed
+     * @param member, the member added or removed
+     * @param role, Journal.ROLE_ADMIN or Journal.ROLE_USER
+     */
+    void logMembership(boolean added, User member, byte role) {
+        if (journal != null) {
+            journal.logMembership(added, owner, label, member.getId(), role);
+        }
+    }
+
+    /**
+     * Reads the password, date, version and history under the account's lock, so an update
+     * in progress is seen either entirely or not at all
+     * @return the current state of the account
+     */
+    synchronized Snapshot snapshot() {
+        return new Snapshot(password, dateCreated, version, oldPasswords.copy());
+    }
+
     /**
      * Gets account username
      * @return username associated with account
@@ -77,11 +289,19 @@ public class Account {
         return dateCreated;
     }
     
+    /**
+     * Gets the version of the account, for passing to update(newPassword, expectedVersion)
+     * @return the number of password changes made to the account since it was created, kept across restarts
+     */
+    public long getVersion() {
+        return version;
+    }
+    
     /**
      * Gets record of previous passwords and dates
-     * @return unmodifiable map of date-password pairs
+     * @return history holding a fingerprint of each previous password, oldest first
      */
-    public Map<Date, String> getOldPasswords() {
+    public PasswordHistory getOldPasswords() {
         return oldPasswords;
     }
 }
\ No newline at end of file
@@ -0,0 +1,65 @@
+package PasswordManager;
+
+import java.util.Date;
+
+/**
+ * Notice that a SharedAccount's password changed, as delivered by its ChangeFeed
+ * The notice does not carry the password; a member reads the account again to get it. Changes made
+ * faster than they are delivered are folded into the latest one, which counts how many it stands for
+ */
+public final class AccountChange {
+    private final SharedAccount account;
+    private final long version;
+    private final Date date;
+    private final int changes;
+
+    AccountChange(SharedAccount account, long version, Date date) {
+        this(account, version, date, 1);
+    }
+
+    private AccountChange(SharedAccount account, long version, Date date, int changes) {
+        this.account = account;
+        this.version = version;
+        this.date = date;
+        this.changes = changes;
+    }
+
+    /**
+     * Folds two undelivered changes into one; they may be published out of order, so the later one is
+     * the one with the higher version, not the one published last
+     * @param other another change to the account not yet delivered
+     * @return the later of the two changes, standing for both
+     */
+    AccountChange coalesce(AccountChange other) {
+        AccountChange later = other.version > version ? other : this;
+        return new AccountChange(account, later.version, later.date, changes + other.changes);
+    }
+
+    /**
+     * @return the account that changed
+     */
+    public SharedAccount getAccount() {
+        return account;
+    }
+
+    /**
+     * @return the account's version after the change, as returned by getVersion
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the time the new password was set
+     */
+    public Date getDate() {
+        return new Date(date.getTime());
+    }
+
+    /**
+     * @return the number of password changes this notice stands for, more than 1 if several were coalesced
+     */
+    public int getChanges() {
+        return changes;
+    }
+}
@@ -0,0 +1,242 @@
+package PasswordManager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Memory-mapped Bloom filter over the SHA-1 digests of breached passwords
+ * The filter file is a header (magic, version, hash count, bit count, item count) followed by the bit
+ * array, which is mapped in 1GB chunks and read in place, so a corpus of hundreds of millions of
+ * passwords costs page cache rather than heap. A lookup hashes the password once and probes k bits.
+ * False positives occur at the rate the filter was built for; false negatives never do.
+ * The main method builds a filter file from a corpus of SHA-1 hex lines (as published by Have I Been
+ * Pwned, with or without ":count" suffixes) or plaintext passwords, one per line
+ */
+public final class BreachedPasswordFilter {
+    private static final int MAGIC = 0x504D4246; // "PMBF"
+    private static final short VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int CHUNK_SHIFT = 30;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+    private static final int MAX_HASHES = 30;
+    private static final double DEFAULT_FALSE_POSITIVE_RATE = 0.001;
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    private final MappedByteBuffer[] chunks;
+    private final long numBits;
+    private final int numHashes;
+    private final long count;
+
+    private BreachedPasswordFilter(MappedByteBuffer[] chunks, long numBits, int numHashes, long count) {
+        this.chunks = chunks;
+        this.numBits = numBits;
+        this.numHashes = numHashes;
+        this.count = count;
+    }
+
+    /**
+     * Builds a filter file from a corpus file, reading the corpus twice
+     * @param args the corpus file, the filter file to write and optionally the false positive rate
+     * @throws IOException if the corpus cannot be read or the filter cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BreachedPasswordFilter <corpus> <filter> [falsePositiveRate]");
+            System.exit(2);
+        }
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_FALSE_POSITIVE_RATE;
+        long start = System.nanoTime();
+        BreachedPasswordFilter filter = build(Paths.get(args[0]), Paths.get(args[1]), rate);
+        System.out.println(filter.count + " passwords, " + filter.numBits + " bits, " + filter.numHashes
+                + " hashes, " + (HEADER_SIZE + byteCount(filter.numBits)) + " bytes, built in "
+                + (System.nanoTime() - start) / 1_000_000 + "ms");
+    }
+
+    /**
+     * Opens a filter file built by build
+     * @param file the filter file
+     * @return the opened filter
+     * @throws IOException if the file cannot be read or is not a filter file
+     */
+    public static BreachedPasswordFilter open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            header.flip();
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getShort() != VERSION) {
+                throw new IOException(file + " is not a version " + VERSION + " breached password filter");
+            }
+            int numHashes = header.getShort();
+            long numBits = header.getLong();
+            long count = header.getLong();
+            if (channel.size() < HEADER_SIZE + byteCount(numBits)) {
+                throw new IOException(file + " is truncated");
+            }
+            return new BreachedPasswordFilter(map(channel, FileChannel.MapMode.READ_ONLY, numBits), numBits,
+                    numHashes, count);
+        }
+    }
+
+    /**
+     * Builds a filter file from a corpus file, reading the corpus twice
+     * @param corpus SHA-1 hex lines or plaintext passwords, one per line
+     * @param file the filter file to write, replaced if it exists
+     * @param falsePositiveRate the chance a password not in the corpus is reported as breached
+     * @return the built filter, opened
+     * @throws IOException if the corpus cannot be read or the filter cannot be written
+     */
+    public static BreachedPasswordFilter build(Path corpus, Path file, double falsePositiveRate)
+            throws IOException {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("falsePositiveRate must be between 0 and 1");
+        }
+        long expected = 0;
+        try (BufferedReader in = Files.newBufferedReader(corpus, StandardCharsets.UTF_8)) {
+            while (in.readLine() != null) {
+                expected++;
+            }
+        }
+        double ln2 = Math.log(2);
+        long numBits = Math.max(64, (long) Math.ceil(-Math.max(1, expected) * Math.log(falsePositiveRate)
+                / (ln2 * ln2)));
+        int numHashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round((double) numBits / Math.max(1, expected)
+                * ln2)));
+        Files.deleteIfExists(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            BreachedPasswordFilter filter = new BreachedPasswordFilter(
+                    map(channel, FileChannel.MapMode.READ_WRITE, numBits), numBits, numHashes, 0);
+            long count = 0;
+            try (BufferedReader in = Files.newBufferedReader(corpus, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    byte[] digest = parseLine(line);
+                    if (digest != null) {
+                        filter.add(digest);
+                        count++;
+                    }
+                }
+            }
+            for (MappedByteBuffer chunk : filter.chunks) {
+                chunk.force();
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putShort(VERSION).putShort((short) numHashes).putLong(numBits).putLong(count)
+                    .flip();
+            RecordCodec.writeFully(channel, header, 0);
+            channel.force(true);
+        }
+        return open(file);
+    }
+
+    /**
+     * @param password the password to look up
+     * @return true if the password is probably in the corpus, false if it certainly is not
+     */
+    public boolean mightContain(String password) {
+        byte[] bytes = password.getBytes(StandardCharsets.UTF_8);
+        try {
+            return mightContainDigest(SHA1.get().digest(bytes));
+        } finally {
+            Credentials.wipe(bytes);
+        }
+    }
+
+    /**
+     * @param sha1 the SHA-1 digest of the password to look up
+     * @return true if the digest is probably in the corpus, false if it certainly is not
+     */
+    public boolean mightContainDigest(byte[] sha1) {
+        long h1 = ByteBuffer.wrap(sha1).getLong(0);
+        long h2 = ByteBuffer.wrap(sha1).getLong(8) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            long index = bit >>> 3;
+            if ((chunks[(int) (index >>> CHUNK_SHIFT)].get((int) (index & CHUNK_MASK)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of passwords the filter was built from
+     */
+    public long size() {
+        return count;
+    }
+
+    /**
+     * @return the size of the bit array in bytes
+     */
+    public long byteSize() {
+        return byteCount(numBits);
+    }
+
+    private void add(byte[] sha1) {
+        long h1 = ByteBuffer.wrap(sha1).getLong(0);
+        long h2 = ByteBuffer.wrap(sha1).getLong(8) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            long index = bit >>> 3;
+            MappedByteBuffer chunk = chunks[(int) (index >>> CHUNK_SHIFT)];
+            int offset = (int) (index & CHUNK_MASK);
+            chunk.put(offset, (byte) (chunk.get(offset) | (1 << (bit & 7))));
+        }
+    }
+
+    private static MappedByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode, long numBits)
+            throws IOException {
+        long bytes = byteCount(numBits);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((bytes + CHUNK_MASK) >>> CHUNK_SHIFT)];
+        for (int i = 0; i < chunks.length; i++) {
+            long offset = (long) i << CHUNK_SHIFT;
+            chunks[i] = channel.map(mode, HEADER_SIZE + offset, Math.min(1L << CHUNK_SHIFT, bytes - offset));
+        }
+        return chunks;
+    }
+
+    private static long byteCount(long numBits) {
+        return (numBits + 7) >>> 3;
+    }
+
+    /**
+     * @param line a corpus line, either 40 hex digits optionally followed by ":count", or a plaintext password
+     * @return the SHA-1 digest the line stands for, or null for an empty line
+     */
+    private static byte[] parseLine(String line) {
+        if (line.isEmpty()) {
+            return null;
+        }
+        if (line.length() >= 40 && (line.length() == 40 || line.charAt(40) == ':')) {
+            byte[] digest = new byte[20];
+            boolean hex = true;
+            for (int i = 0; i < 20 && hex; i++) {
+                int high = Character.digit(line.charAt(2 * i), 16);
+                int low = Character.digit(line.charAt(2 * i + 1), 16);
+                hex = high >= 0 && low >= 0;
+                digest[i] = (byte) ((high << 4) | low);
+            }
+            if (hex) {
+                return digest;
+            }
+        }
+        return SHA1.get().digest(line.getBytes(StandardCharsets.UTF_8));
+    }
+}
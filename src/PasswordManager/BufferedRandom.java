@@ -0,0 +1,84 @@
+package PasswordManager;
+
+import java.security.SecureRandom;
+
+/**
+ * A SecureRandom that is read in blocks rather than a few bytes at a time
+ * Each thread gets its own instance through current(), so generators running
+ * in parallel never contend on one SecureRandom
+ */
+final class BufferedRandom {
+    private static final int BUFFER_SIZE = 512;
+    private static final ThreadLocal<BufferedRandom> CURRENT = ThreadLocal.withInitial(BufferedRandom::new);
+
+    private final SecureRandom random = new SecureRandom();
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int position = BUFFER_SIZE;
+
+    private BufferedRandom() {
+    }
+
+    /**
+     * @return the calling thread's BufferedRandom
+     */
+    static BufferedRandom current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Draws a uniformly distributed int, rejecting draws that would bias the result
+     * @param bound the upper bound (exclusive), must be positive
+     * @return a random int between 0 (inclusive) and bound (exclusive)
+     */
+    int nextInt(int bound) {
+        if (bound <= 0) {
+            throw new IllegalArgumentException("bound must be positive");
+        }
+        int limit = Integer.MAX_VALUE - (Integer.MAX_VALUE % bound);
+        int value;
+        do {
+            value = nextPositiveInt();
+        } while (value >= limit);
+        return value % bound;
+    }
+
+    /**
+     * @return a uniformly distributed long
+     */
+    long nextLong() {
+        return ((long) nextPositiveInt() << 33) ^ ((long) nextPositiveInt() << 2) ^ (nextPositiveInt() & 3);
+    }
+
+    /**
+     * Fills part of an array with random bytes
+     * @param bytes the array to fill
+     * @param offset the first index to fill
+     * @param length the number of bytes to fill
+     */
+    void nextBytes(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (position == BUFFER_SIZE) {
+                random.nextBytes(buffer);
+                position = 0;
+            }
+            int n = Math.min(length, BUFFER_SIZE - position);
+            System.arraycopy(buffer, position, bytes, offset, n);
+            position += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    private int nextPositiveInt() {
+        if (position > BUFFER_SIZE - 4) {
+            random.nextBytes(buffer);
+            position = 0;
+        }
+        int value = (buffer[position] & 0x7f) << 24
+                | (buffer[position + 1] & 0xff) << 16
+                | (buffer[position + 2] & 0xff) << 8
+                | (buffer[position + 3] & 0xff);
+        position += 4;
+        return value;
+    }
+}
@@ -0,0 +1,239 @@
+package PasswordManager;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process publish/subscribe stream of a SharedAccount's password changes
+ * Members subscribe with a bounded queue of AccountChanges; when a slow subscriber's queue is full the
+ * oldest change in it is dropped. Publishing only stores the change and schedules a fan-out on the
+ * executor, so the writer never waits on subscribers. Changes published while a fan-out is pending are
+ * coalesced into the one with the highest version, and a fan-out to many subscribers is split into batches run as separate
+ * executor tasks. A subscriber never sees a change older than one it has already been given, and is
+ * closed once it is no longer a member of the account
+ */
+public final class ChangeFeed {
+    private static final int DEFAULT_BATCH_SIZE = 256;
+
+    private final SharedAccount account;
+    private final Executor executor;
+    private final int batchSize;
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+    private final AtomicReference<AccountChange> pending = new AtomicReference<AccountChange>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final LongAdder published = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /** A member's queue of changes to the account */
+    public static final class Subscription implements Closeable {
+        private final ChangeFeed feed;
+        private final User member;
+        private final ArrayBlockingQueue<AccountChange> queue;
+        private long lastVersion = -1; // version of the last change queued, guarded by this
+        private volatile boolean closed;
+
+        private Subscription(ChangeFeed feed, User member, int capacity) {
+            this.feed = feed;
+            this.member = member;
+            this.queue = new ArrayBlockingQueue<AccountChange>(capacity);
+        }
+
+        /**
+         * @return the next change, or null if none is queued
+         */
+        public AccountChange poll() {
+            return queue.poll();
+        }
+
+        /**
+         * Waits for the next change
+         * @param timeout how long to wait
+         * @param unit the unit of timeout
+         * @return the next change, or null if none came in time
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public AccountChange poll(long timeout, TimeUnit unit) throws InterruptedException {
+            return queue.poll(timeout, unit);
+        }
+
+        /**
+         * Moves every queued change into a collection, oldest first
+         * @param changes the collection the changes are added to
+         * @return the number of changes moved
+         */
+        public int drainTo(Collection<? super AccountChange> changes) {
+            return queue.drainTo(changes);
+        }
+
+        /**
+         * @return the member the subscription belongs to
+         */
+        public User getMember() {
+            return member;
+        }
+
+        /**
+         * @return true once the subscription is closed, by its member or because the member left the account
+         */
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Stops changes being queued; changes already queued can still be read
+         */
+        @Override
+        public void close() {
+            closed = true;
+            feed.subscriptions.remove(this);
+        }
+
+        private synchronized void offer(AccountChange change) {
+            if (closed || change.getVersion() <= lastVersion) {
+                return;
+            }
+            lastVersion = change.getVersion();
+            while (!queue.offer(change)) {
+                if (queue.poll() != null) {
+                    feed.dropped.increment();
+                }
+            }
+            feed.delivered.increment();
+        }
+    }
+
+    /**
+     * Creates a feed fanning out on the common ForkJoinPool in batches of 256 subscribers
+     * @param account the account whose changes are published
+     */
+    ChangeFeed(SharedAccount account) {
+        this(account, ForkJoinPool.commonPool(), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param account the account whose changes are published
+     * @param executor runs the fan-out
+     * @param batchSize the most subscribers given a change by one executor task
+     */
+    ChangeFeed(SharedAccount account, Executor executor, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        this.account = account;
+        this.executor = executor;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Subscribes a member of the account to its changes
+     * @param member the member
+     * @param capacity the most changes kept for the member before the oldest is dropped
+     * @return the subscription, or null if the user is not a member of the account
+     */
+    public Subscription subscribe(User member, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        if (member == null || !account.hasMember(member.getId())) {
+            return null;
+        }
+        Subscription subscription = new Subscription(this, member, capacity);
+        subscriptions.add(subscription);
+        return subscription;
+    }
+
+    /**
+     * Publishes a change without waiting for it to be delivered
+     * @param change the change
+     */
+    void publish(AccountChange change) {
+        published.increment();
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        AccountChange previous = pending.getAndUpdate(p -> p == null ? change : p.coalesce(change));
+        if (previous != null) {
+            coalesced.increment();
+        }
+        schedule();
+    }
+
+    /**
+     * @return the number of changes published
+     */
+    public long getPublished() {
+        return published.sum();
+    }
+
+    /**
+     * @return the number of changes folded into a later one before being fanned out
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of changes put in subscribers' queues
+     */
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * @return the number of changes dropped from full subscriber queues
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return the number of open subscriptions
+     */
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            executor.execute(this::fanOut);
+        }
+    }
+
+    private void fanOut() {
+        AccountChange change = pending.getAndSet(null);
+        scheduled.set(false);
+        if (pending.get() != null) {
+            schedule(); // published after the getAndSet but before the flag was cleared
+        }
+        if (change == null) {
+            return;
+        }
+        Object[] targets = subscriptions.toArray();
+        for (int start = batchSize; start < targets.length; start += batchSize) {
+            int from = start;
+            executor.execute(() -> deliver(change, targets, from, Math.min(from + batchSize, targets.length)));
+        }
+        deliver(change, targets, 0, Math.min(batchSize, targets.length));
+    }
+
+    private void deliver(AccountChange change, Object[] targets, int from, int to) {
+        for (int i = from; i < to; i++) {
+            Subscription subscription = (Subscription) targets[i];
+            if (!account.hasMember(subscription.member.getId())) {
+                subscription.close();
+            } else {
+                subscription.offer(change);
+            }
+        }
+    }
+}
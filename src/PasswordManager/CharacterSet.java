@@ -0,0 +1,138 @@
+package PasswordManager;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * An immutable set of Unicode code points, stored as a bitset rather than boxed Characters
+ * PasswordVerifier hands out its allowed characters as one of these, so callers can share
+ * the set without copying it, and membership checks never box
+ */
+public final class CharacterSet {
+    private static final CharacterSet EMPTY = new CharacterSet(new BitSet());
+
+    private final BitSet codePoints; // never mutated once the set is constructed
+    private final int size;
+
+    private CharacterSet(BitSet codePoints) {
+        this.codePoints = codePoints;
+        this.size = codePoints.cardinality();
+    }
+
+    /**
+     * @return a set with no characters
+     */
+    public static CharacterSet empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param codePoint the Unicode code point to look for
+     * @return true if the code point is in the set, otherwise false
+     */
+    public boolean contains(int codePoint) {
+        return codePoint >= 0 && codePoints.get(codePoint);
+    }
+
+    /**
+     * @return the number of code points in the set
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if the set has no code points
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return a new array of every code point in the set, in ascending order
+     */
+    public int[] toCodePoints() {
+        return codePoints.stream().toArray();
+    }
+
+    /**
+     * Characters outside the Basic Multilingual Plane need two chars and are left out
+     * @return a new array of every single-char member of the set, in ascending order
+     */
+    public char[] toChars() {
+        int count = codePoints.get(0, Character.MAX_VALUE + 1).cardinality();
+        char[] chars = new char[count];
+        int i = 0;
+        for (int c = codePoints.nextSetBit(0); c >= 0 && c <= Character.MAX_VALUE; c = codePoints.nextSetBit(c + 1)) {
+            chars[i++] = (char) c;
+        }
+        return chars;
+    }
+
+    /**
+     * Characters outside the Basic Multilingual Plane cannot be held in a Character and are left out
+     * @return a new mutable set of every single-char member of the set
+     */
+    public Set<Character> toSet() {
+        Set<Character> set = new HashSet<Character>();
+        for (char c : toChars()) {
+            set.add(c);
+        }
+        return set;
+    }
+
+    /**
+     * @param chars the characters to be added
+     * @return a set holding this set's code points plus the given characters
+     */
+    CharacterSet with(char[] chars) {
+        BitSet copy = (BitSet) codePoints.clone();
+        for (char c : chars) {
+            copy.set(c);
+        }
+        return new CharacterSet(copy);
+    }
+
+    /**
+     * @param chars the characters to be removed
+     * @return a set holding this set's code points minus the given characters
+     */
+    CharacterSet without(char[] chars) {
+        BitSet copy = (BitSet) codePoints.clone();
+        for (char c : chars) {
+            copy.clear(c);
+        }
+        return new CharacterSet(copy);
+    }
+
+    /**
+     * @param first the first code point of the range
+     * @param last the last code point of the range, inclusive
+     * @return a set holding this set's code points plus the given range
+     */
+    CharacterSet withRange(int first, int last) {
+        checkRange(first, last);
+        BitSet copy = (BitSet) codePoints.clone();
+        copy.set(first, last + 1);
+        return new CharacterSet(copy);
+    }
+
+    /**
+     * @param first the first code point of the range
+     * @param last the last code point of the range, inclusive
+     * @return a set holding this set's code points minus the given range
+     */
+    CharacterSet withoutRange(int first, int last) {
+        checkRange(first, last);
+        BitSet copy = (BitSet) codePoints.clone();
+        copy.clear(first, last + 1);
+        return new CharacterSet(copy);
+    }
+
+    private static void checkRange(int first, int last) {
+        if (!Character.isValidCodePoint(first) || !Character.isValidCodePoint(last) || first > last) {
+            throw new IllegalArgumentException("Invalid code point range: " + first + " to " + last);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package PasswordManager;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Helpers for handling plaintext credentials as char and byte arrays
+ * Unlike Strings, these arrays can be zeroed as soon as a credential has been used,
+ * so plaintext does not sit in the heap until the next garbage collection
+ */
+final class Credentials {
+    // replaces malformed input the same way String.getBytes does
+    private static final ThreadLocal<CharsetEncoder> ENCODERS = ThreadLocal.withInitial(() ->
+            StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+
+    private Credentials() {
+    }
+
+    /**
+     * Encodes a credential as UTF-8 without going through an intermediate String
+     * @param chars the credential to be encoded, left untouched
+     * @return the UTF-8 bytes of the credential, to be wiped by the caller
+     */
+    static byte[] encode(char[] chars) {
+        CharsetEncoder encoder = ENCODERS.get().reset();
+        byte[] buffer = new byte[(int) (chars.length * encoder.maxBytesPerChar())];
+        ByteBuffer out = ByteBuffer.wrap(buffer);
+        encoder.encode(CharBuffer.wrap(chars), out, true);
+        encoder.flush(out);
+        if (out.position() == buffer.length) {
+            return buffer;
+        }
+        byte[] bytes = Arrays.copyOf(buffer, out.position());
+        wipe(buffer);
+        return bytes;
+    }
+
+    /**
+     * Zeroes a plaintext byte array
+     * @param bytes the array to be wiped, may be null
+     */
+    static void wipe(byte[] bytes) {
+        if (bytes != null) {
+            Arrays.fill(bytes, (byte) 0);
+        }
+    }
+
+    /**
+     * Zeroes a plaintext char array
+     * @param chars the array to be wiped, may be null
+     */
+    static void wipe(char[] chars) {
+        if (chars != null) {
+            Arrays.fill(chars, '\0');
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package PasswordManager;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * A custom criteria added to a PasswordVerifier, with the counters used to order it
+ * Criteria are run in ascending rank, the expected cost of finding a rejection with this criteria:
+ * its average run time divided by the share of passwords it rejects. Until a criteria has been run
+ * often enough, its cost hint stands in for the measured time
+ */
+final class Criterion {
+    private static final int PRIOR_CALLS = 32; // weight of the cost hint against measured calls
+
+    final Predicate<String> predicate;
+    final double costHint; // expected nanoseconds per call
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    Criterion(Predicate<String> predicate, double costHint) {
+        this.predicate = predicate;
+        this.costHint = costHint;
+    }
+
+    /**
+     * Runs the criteria, counting the call, its time and whether it rejected the password
+     * @param password the password being verified
+     * @return true if the criteria accepts the password, otherwise false
+     */
+    boolean test(String password) {
+        long start = System.nanoTime();
+        boolean accepted = predicate.test(password);
+        nanos.add(System.nanoTime() - start);
+        calls.increment();
+        if (!accepted) {
+            rejections.increment();
+        }
+        return accepted;
+    }
+
+    /**
+     * @return the expected nanoseconds spent per rejection, lower runs first
+     */
+    double rank() {
+        long n = calls.sum();
+        double cost = (nanos.sum() + costHint * PRIOR_CALLS) / (n + PRIOR_CALLS);
+        double rejectRate = (rejections.sum() + 1.0) / (n + 2.0);
+        return cost / rejectRate;
+    }
+}
@@ -0,0 +1,114 @@
+package PasswordManager;
+
+import javax.crypto.*;
+import javax.crypto.spec.GCMParameterSpec;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Shared AES/GCM engine used by every encrypt and decrypt path in the PasswordManager
+ * Cipher.getInstance goes through the provider lookup on every call, so each thread keeps
+ * its own Cipher and only re-initialises it with the key and IV of the current record
+ */
+final class CryptoEngine {
+    static final String ALGORITHM = "AES/GCM/NoPadding";
+    static final int GCM_TAG_LENGTH = 128;
+
+    private static final ThreadLocal<Cipher> CIPHERS = ThreadLocal.withInitial(CryptoEngine::newCipher);
+    // per-thread output buffer for decryptions whose plaintext never needs to leave the engine
+    private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[64]);
+
+    private CryptoEngine() {
+    }
+
+    /**
+     * Encrypts bytes with the calling thread's cached Cipher
+     * @param plainText the bytes to be encrypted
+     * @param secretKey the SecretKey value to be used for encryption
+     * @param iv initialization vector for GCMParametersSpec, never used with the key before
+     * @return the cipher text followed by the GCM tag
+     * @throws IllegalArgumentException if the IV is not valid for the cipher
+     */
+    static byte[] encrypt(byte[] plainText, SecretKey secretKey, byte[] iv) {
+        Cipher cipher = CIPHERS.get();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            return cipher.doFinal(plainText);
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new IllegalArgumentException("Invalid IV for " + ALGORITHM + ": " + e.getMessage(), e);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Decrypts bytes with the calling thread's cached Cipher
+     * @param cipherText the cipher text followed by the GCM tag
+     * @param secretKey the SecretKey value to be used for decryption
+     * @param iv initialization vector the bytes were encrypted with
+     * @return the decrypted bytes
+     */
+    static byte[] decrypt(byte[] cipherText, SecretKey secretKey, byte[] iv) {
+        Cipher cipher = CIPHERS.get();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            return cipher.doFinal(cipherText);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Decrypts bytes and compares the plaintext with an expected value in constant time
+     * The plaintext is written to a per-thread buffer that is zeroed before returning,
+     * so checking a credential allocates no plaintext copies
+     * @param cipherText the cipher text followed by the GCM tag
+     * @param secretKey the SecretKey value to be used for decryption
+     * @param iv initialization vector the bytes were encrypted with
+     * @param expected the plaintext to compare against
+     * @return true if the decrypted bytes equal expected, otherwise false
+     */
+    static boolean decryptMatches(byte[] cipherText, SecretKey secretKey, byte[] iv, byte[] expected) {
+        Cipher cipher = CIPHERS.get();
+        byte[] scratch = SCRATCH.get();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            int outputSize = cipher.getOutputSize(cipherText.length);
+            if (scratch.length < outputSize) {
+                scratch = new byte[Math.max(outputSize, scratch.length * 2)];
+                SCRATCH.set(scratch);
+            }
+            int length = cipher.doFinal(cipherText, 0, cipherText.length, scratch, 0);
+            return constantTimeEquals(scratch, length, expected);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        } finally {
+            Arrays.fill(scratch, (byte) 0);
+        }
+    }
+
+    /**
+     * @return the calling thread's cached Cipher, for callers that initialise it with a fresh IV each time
+     */
+    static Cipher cipher() {
+        return CIPHERS.get();
+    }
+
+    private static boolean constantTimeEquals(byte[] actual, int length, byte[] expected) {
+        int diff = length ^ expected.length;
+        for (int i = 0; i < expected.length; i++) {
+            diff |= (i < length ? actual[i] : 0) ^ expected[i];
+        }
+        return diff == 0;
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package PasswordManager;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.stream.Stream;
+
+/**
+ * Self-describing AES/GCM record format, with a fresh random IV for every record
+ * An envelope is a version byte, a key id byte naming the KeyRing key it was sealed with, a 12-byte IV,
+ * and the cipher text followed by the 16-byte GCM tag. The version and key id are authenticated as
+ * additional data, so they cannot be changed without the envelope failing to open. Envelopes are read
+ * straight out of a ByteBuffer, records sealed with an old key can be resealed one at a time, and records
+ * written by encryptPwd can be migrated into envelopes
+ */
+public final class Envelope {
+    public static final int VERSION = 1;
+    public static final int IV_LENGTH = 12;
+    public static final int HEADER_SIZE = 2 + IV_LENGTH;
+    public static final int OVERHEAD = HEADER_SIZE + CryptoEngine.GCM_TAG_LENGTH / 8;
+
+    // per-thread buffer for plaintext that only passes through reseal, zeroed after each use
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocate(256));
+
+    private Envelope() {
+    }
+
+    /**
+     * Seals bytes with the ring's primary key and a new random IV
+     * @param plainText the bytes to be sealed
+     * @param ring the keys, whose primary key is used
+     * @return the envelope
+     */
+    public static byte[] seal(byte[] plainText, KeyRing ring) {
+        return seal(plainText, 0, plainText.length, ring);
+    }
+
+    /**
+     * Seals a password with the ring's primary key and a new random IV, wiping its encoded bytes afterwards
+     * @param password the plaintext password to be sealed
+     * @param ring the keys, whose primary key is used
+     * @return the Base64 envelope
+     */
+    static String sealPassword(String password, KeyRing ring) {
+        byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+        try {
+            return Base64.getEncoder().encodeToString(seal(passwordBytes, ring));
+        } finally {
+            Credentials.wipe(passwordBytes);
+        }
+    }
+
+    /**
+     * Reads the key id of an envelope without opening it
+     * @param envelope the envelope from its position to its limit, not advanced
+     * @return the id of the key the envelope was sealed with
+     */
+    public static int keyId(ByteBuffer envelope) {
+        checkHeader(envelope);
+        return envelope.get(envelope.position() + 1) & 0xff;
+    }
+
+    /**
+     * @param envelope the envelope from its position to its limit, not advanced
+     * @return the length of the bytes sealed in the envelope
+     */
+    public static int plainTextLength(ByteBuffer envelope) {
+        checkHeader(envelope);
+        return envelope.remaining() - OVERHEAD;
+    }
+
+    /**
+     * Opens an envelope into a buffer, reading the IV and cipher text in place
+     * @param envelope the envelope from its position to its limit, not advanced
+     * @param ring the keys, which must hold the key the envelope was sealed with
+     * @param plainText the buffer the opened bytes are written to, advanced past them
+     * @return the number of bytes written
+     */
+    public static int open(ByteBuffer envelope, KeyRing ring, ByteBuffer plainText) {
+        int start = envelope.position();
+        SecretKey key = ring.get(keyId(envelope));
+        if (key == null) {
+            throw new IllegalArgumentException("No key with id " + keyId(envelope) + " in the KeyRing");
+        }
+        GCMParameterSpec spec;
+        if (envelope.hasArray()) {
+            spec = new GCMParameterSpec(CryptoEngine.GCM_TAG_LENGTH, envelope.array(),
+                    envelope.arrayOffset() + start + 2, IV_LENGTH);
+        } else {
+            byte[] iv = new byte[IV_LENGTH];
+            envelope.duplicate().position(start + 2).get(iv);
+            spec = new GCMParameterSpec(CryptoEngine.GCM_TAG_LENGTH, iv);
+        }
+        ByteBuffer header = envelope.duplicate();
+        header.limit(start + 2);
+        ByteBuffer cipherText = envelope.duplicate();
+        cipherText.position(start + HEADER_SIZE);
+        Cipher cipher = CryptoEngine.cipher();
+        try {
+            cipher.init(Cipher.DECRYPT_MODE, key, spec);
+            cipher.updateAAD(header);
+            return cipher.doFinal(cipherText, plainText);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Opens an envelope
+     * @param envelope the envelope from its position to its limit, not advanced
+     * @param ring the keys, which must hold the key the envelope was sealed with
+     * @return the opened bytes
+     */
+    public static byte[] open(ByteBuffer envelope, KeyRing ring) {
+        byte[] plainText = new byte[plainTextLength(envelope)];
+        open(envelope, ring, ByteBuffer.wrap(plainText));
+        return plainText;
+    }
+
+    /**
+     * Reseals an envelope with the ring's primary key and a new IV, without the plaintext leaving a
+     * per-thread buffer that is zeroed afterwards
+     * @param envelope the envelope from its position to its limit, not advanced
+     * @param ring the keys, holding both the key the envelope was sealed with and the primary key
+     * @return the new envelope
+     */
+    public static byte[] reseal(ByteBuffer envelope, KeyRing ring) {
+        int length = plainTextLength(envelope);
+        ByteBuffer scratch = SCRATCH.get();
+        if (scratch.capacity() < length) {
+            scratch = ByteBuffer.allocate(Math.max(length, scratch.capacity() * 2));
+            SCRATCH.set(scratch);
+        }
+        scratch.clear();
+        try {
+            open(envelope, ring, scratch);
+            return seal(scratch.array(), 0, length, ring);
+        } finally {
+            Arrays.fill(scratch.array(), 0, length, (byte) 0);
+        }
+    }
+
+    /**
+     * Reseals a stream of Base64 envelopes with the ring's primary key, passing through those already
+     * sealed with it; the stream stays lazy, so records can be read, resealed and written back in turn
+     * @param envelopes the Base64 envelopes
+     * @param ring the keys, holding every key the envelopes were sealed with and the primary key
+     * @return the Base64 envelopes, all sealed with the primary key, in the same order
+     */
+    public static Stream<String> resealAll(Stream<String> envelopes, KeyRing ring) {
+        Base64.Decoder decoder = Base64.getDecoder();
+        Base64.Encoder encoder = Base64.getEncoder();
+        return envelopes.map(record -> {
+            ByteBuffer envelope = ByteBuffer.wrap(decoder.decode(record));
+            if (keyId(envelope) == ring.getPrimaryId()) {
+                return record;
+            }
+            return encoder.encodeToString(reseal(envelope, ring));
+        });
+    }
+
+    /**
+     * Moves a record written by encryptPwd into an envelope sealed with the ring's primary key and a fresh IV;
+     * the plaintext is zeroed once sealed
+     * @param legacy the cipher text and GCM tag written by encryptPwd
+     * @param key the key the record was encrypted with
+     * @param iv the IV the record was encrypted with
+     * @param ring the keys, whose primary key is used
+     * @return the new envelope
+     */
+    public static byte[] migrate(byte[] legacy, SecretKey key, byte[] iv, KeyRing ring) {
+        byte[] plainText = CryptoEngine.decrypt(legacy, key, iv);
+        try {
+            return seal(plainText, ring);
+        } finally {
+            Arrays.fill(plainText, (byte) 0);
+        }
+    }
+
+    private static byte[] seal(byte[] plainText, int offset, int length, KeyRing ring) {
+        int keyId = ring.getPrimaryId();
+        SecretKey key = keyId < 0 ? null : ring.get(keyId);
+        if (key == null) {
+            throw new IllegalStateException("The KeyRing has no primary key");
+        }
+        byte[] envelope = new byte[length + OVERHEAD];
+        envelope[0] = VERSION;
+        envelope[1] = (byte) keyId;
+        BufferedRandom.current().nextBytes(envelope, 2, IV_LENGTH);
+        Cipher cipher = CryptoEngine.cipher();
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(CryptoEngine.GCM_TAG_LENGTH, envelope, 2,
+                    IV_LENGTH));
+            cipher.updateAAD(envelope, 0, 2);
+            cipher.doFinal(plainText, offset, length, envelope, HEADER_SIZE);
+            return envelope;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void checkHeader(ByteBuffer envelope) {
+        if (envelope.remaining() < OVERHEAD) {
+            throw new IllegalArgumentException("Envelope is too short");
+        }
+        if (envelope.get(envelope.position()) != VERSION) {
+            throw new IllegalArgumentException("Unknown envelope version " + envelope.get(envelope.position()));
+        }
+    }
+}
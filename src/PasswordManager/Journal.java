@@ -0,0 +1,370 @@
+package PasswordManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-ahead journal of the account changes made between VaultStore snapshots
+ * Each change is logged as a small binary record before it is applied. Records from concurrent threads
+ * are handed to one writer thread, which writes everything queued (up to the batch size) and forces it
+ * to disk once, so a single fsync is shared by the whole batch. After a restart the journal is replayed
+ * onto the users read back from the VaultStore. Replay is safe to repeat over a snapshot that already holds
+ * some of the changes: password changes carry the version they made and are skipped by an account already
+ * at that version, and every other record sets state rather than adding to it
+ */
+public final class Journal implements Closeable {
+    private static final int MAGIC = 0x504D564A; // "PMVJ"
+    private static final short VERSION = 4;
+    private static final int FILE_HEADER_SIZE = 6;
+    private static final int DEFAULT_MAX_BATCH = 256;
+
+    private static final byte UPDATE = 1;         // owner, label, new password, time it was set, version it made,
+                                                  // history fingerprint of the password it replaced
+    private static final byte ADD_ACCOUNT = 2;    // owner, label, account
+    private static final byte EDIT_ACCOUNT = 3;   // owner, label, account
+    private static final byte DELETE_ACCOUNT = 4; // owner, label
+    private static final byte ADD_MEMBER = 5;     // owner, label, member id, role
+    private static final byte REMOVE_MEMBER = 6;  // owner, label, member id, role
+
+    static final byte ROLE_USER = 0;
+    static final byte ROLE_ADMIN = 1;
+
+    private final Path file;
+    private final PasswordVerifier verifier;
+    private final int maxBatch;
+    private final FileChannel channel;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+    private final Thread writer;
+    private volatile boolean replaying; // changes applied by replay are not logged again
+    private volatile boolean closed;       // set under queue, so nothing is queued once the writer may have exited
+    private volatile Throwable writerFailure; // set under queue if the writer thread died, null while it runs
+
+    /** A record waiting for the writer thread */
+    private static final class Pending {
+        final byte[] record;
+        final CompletableFuture<Void> durable = new CompletableFuture<Void>();
+
+        Pending(byte[] record) {
+            this.record = record;
+        }
+    }
+
+    private Journal(Path file, PasswordVerifier verifier, int maxBatch, FileChannel channel) {
+        this.file = file;
+        this.verifier = verifier;
+        this.maxBatch = maxBatch;
+        this.channel = channel;
+        this.writer = new Thread(this::writeBatches, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Opens a journal file with the default batch size, creating it if it does not exist
+     * @param file the journal file
+     * @param verifier the password policy given to Accounts read back from the journal
+     * @return the opened journal
+     * @throws IOException if the file cannot be opened or is not a journal file
+     */
+    public static Journal open(Path file, PasswordVerifier verifier) throws IOException {
+        return open(file, verifier, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * Opens a journal file, creating it if it does not exist
+     * @param file the journal file
+     * @param verifier the password policy given to Accounts read back from the journal
+     * @param maxBatch the most records written per fsync
+     * @return the opened journal
+     * @throws IOException if the file cannot be opened or is not a journal file
+     */
+    public static Journal open(Path file, PasswordVerifier verifier, int maxBatch) throws IOException {
+        if (maxBatch < 1) {
+            throw new IllegalArgumentException("maxBatch must be at least 1");
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (channel.size() < FILE_HEADER_SIZE) {
+            channel.truncate(0);
+            RecordCodec.writeFully(channel, fileHeader(), 0);
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            channel.read(header, 0);
+            if (header.getInt(0) != MAGIC || header.getShort(4) != VERSION) {
+                channel.close();
+                throw new IOException(file + " is not a version " + VERSION + " journal file");
+            }
+        }
+        channel.position(channel.size());
+        return new Journal(file, verifier, maxBatch, channel);
+    }
+
+    /**
+     * Applies every change in the journal to the users of a system
+     * A record left half written by a crash ends the replay and is cut from the file
+     * @param sys the system to apply the changes to, holding the users as of the last snapshot
+     */
+    public synchronized void replay(PasswordSystem sys) {
+        replaying = true;
+        try {
+            long size = channel.size();
+            ByteBuffer records = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int position = FILE_HEADER_SIZE;
+            while (position + RecordCodec.RECORD_HEADER_SIZE <= size) {
+                int length = records.getInt(position);
+                if (length < 0 || position + RecordCodec.RECORD_HEADER_SIZE + length > size) {
+                    break;
+                }
+                byte type = records.get(position + 8);
+                ByteBuffer payload = records.duplicate();
+                payload.position(position + RecordCodec.RECORD_HEADER_SIZE)
+                        .limit(position + RecordCodec.RECORD_HEADER_SIZE + length);
+                payload = payload.slice();
+                if (RecordCodec.checksum(type, payload) != records.getInt(position + 4)) {
+                    break;
+                }
+                apply(type, payload, sys);
+                position += RecordCodec.RECORD_HEADER_SIZE + length;
+            }
+            if (position < size) {
+                channel.truncate(position);
+                channel.position(position);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            replaying = false;
+        }
+    }
+
+    /**
+     * Empties the journal, once its changes are in a VaultStore snapshot
+     * No changes should be logged while this runs
+     */
+    public synchronized void reset() {
+        try {
+            channel.truncate(FILE_HEADER_SIZE);
+            channel.position(FILE_HEADER_SIZE);
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Stops the writer thread once every queued record is on disk, then closes the file
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (queue) {
+            closed = true;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Logs a password change, waiting until it is on disk
+     * @param owner the username of the User holding the account
+     * @param label the label of the account
+     * @param newPassword the new password
+     * @param date the time the password was set
+     * @param version the version of the account after the change
+     * @param replaced the fingerprint the account's history remembers the replaced password by
+     */
+    void logUpdate(String owner, String label, String newPassword, Date date, long version, long replaced) {
+        log(UPDATE, owner, label, out -> {
+            RecordCodec.writeString(out, newPassword);
+            out.writeLong(date.getTime());
+            out.writeLong(version);
+            out.writeLong(replaced);
+        });
+    }
+
+    /**
+     * Logs an account being added or replaced, waiting until it is on disk
+     * @param added true if the account is new, false if it replaces one under the label
+     * @param owner the username of the User holding the account
+     * @param label the label of the account
+     * @param account the account
+     */
+    void logAccount(boolean added, String owner, String label, Account account) {
+        log(added ? ADD_ACCOUNT : EDIT_ACCOUNT, owner, label, out -> RecordCodec.writeAccount(out, account));
+    }
+
+    /**
+     * Logs an account being deleted, waiting until it is on disk
+     * @param owner the username of the User holding the account
+     * @param label the label of the account
+     */
+    void logDeleteAccount(String owner, String label) {
+        log(DELETE_ACCOUNT, owner, label, out -> { });
+    }
+
+    /**
+     * Logs a member being added to or removed from a shared account, waiting until it is on disk
+     * @param added true if the member is added, false if removed
+     * @param owner the username of the User holding the account
+     * @param label the label of the account
+     * @param member the id of the member
+     * @param role ROLE_ADMIN or ROLE_USER
+     */
+    void logMembership(boolean added, String owner, String label, long member, byte role) {
+        log(added ? ADD_MEMBER : REMOVE_MEMBER, owner, label, out -> {
+            out.writeLong(member);
+            out.writeByte(role);
+        });
+    }
+
+    private void log(byte type, String owner, String label, RecordCodec.PayloadWriter fields) {
+        if (replaying) {
+            return;
+        }
+        Pending pending;
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            RecordCodec.writeRecord(record, type, out -> {
+                RecordCodec.writeString(out, owner);
+                RecordCodec.writeString(out, label);
+                fields.write(out);
+            });
+            pending = new Pending(record.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        synchronized (queue) {
+            if (closed) {
+                throw new IllegalStateException("Journal " + file + " is closed");
+            }
+            if (writerFailure != null) {
+                throw new IllegalStateException("Journal " + file + " writer has failed", writerFailure);
+            }
+            queue.add(pending);
+        }
+        try {
+            pending.durable.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw new UncheckedIOException((IOException) e.getCause());
+            }
+            throw e;
+        }
+    }
+
+    private void writeBatches() {
+        List<Pending> batch = new ArrayList<Pending>(maxBatch);
+        try {
+            while (!closed || !queue.isEmpty()) {
+                try {
+                    Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                queue.drainTo(batch, maxBatch - 1);
+                ByteBuffer[] records = new ByteBuffer[batch.size()];
+                for (int i = 0; i < records.length; i++) {
+                    records[i] = ByteBuffer.wrap(batch.get(i).record);
+                }
+                try {
+                    synchronized (this) {
+                        while (records[records.length - 1].hasRemaining()) {
+                            channel.write(records);
+                        }
+                        channel.force(false);
+                    }
+                    for (Pending pending : batch) {
+                        pending.durable.complete(null);
+                    }
+                } catch (IOException e) {
+                    for (Pending pending : batch) {
+                        pending.durable.completeExceptionally(e);
+                    }
+                }
+                batch.clear();
+            }
+        } catch (Throwable t) {
+            // anything but an IOException leaves the file in an unknown state, so the writer stops
+            // and every record it will never write fails rather than waiting forever
+            for (Pending pending : batch) {
+                pending.durable.completeExceptionally(t);
+            }
+            synchronized (queue) {
+                writerFailure = t;
+            }
+            for (Pending pending = queue.poll(); pending != null; pending = queue.poll()) {
+                pending.durable.completeExceptionally(t);
+            }
+            if (t instanceof Error) {
+                throw (Error) t;
+            }
+        }
+    }
+
+    private void apply(byte type, ByteBuffer payload, PasswordSystem sys) {
+        User user = sys.getUser(RecordCodec.readString(payload));
+        String label = RecordCodec.readString(payload);
+        if (user == null) {
+            return;
+        }
+        switch (type) {
+            case UPDATE: {
+                Account account = user.getAccount(label);
+                String newPassword = RecordCodec.readString(payload);
+                Date date = new Date(payload.getLong());
+                long version = payload.getLong();
+                if (account != null) {
+                    account.replayUpdate(newPassword, date, version, payload.getLong());
+                }
+                break;
+            }
+            case ADD_ACCOUNT:
+            case EDIT_ACCOUNT:
+                user.editAccount(label, RecordCodec.readAccount(payload, verifier, sys::userById));
+                break;
+            case DELETE_ACCOUNT:
+                user.deleteAccount(label);
+                break;
+            case ADD_MEMBER:
+            case REMOVE_MEMBER: {
+                Account account = user.getAccount(label);
+                User member = sys.userById(payload.getLong());
+                byte role = payload.get();
+                if (account instanceof SharedAccount && member != null) {
+                    ((SharedAccount) account).applyMembership(type == ADD_MEMBER, role, member);
+                }
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown journal record type " + type + " in " + file);
+        }
+    }
+
+    private static ByteBuffer fileHeader() {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).flip();
+        return header;
+    }
+}
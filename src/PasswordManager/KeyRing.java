@@ -0,0 +1,83 @@
+package PasswordManager;
+
+import javax.crypto.SecretKey;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The AES keys that Envelopes may be sealed with, each under a one-byte key id
+ * New envelopes are sealed with the primary key; envelopes sealed with any key still in the ring can
+ * be opened, so a key can be replaced by adding the new one, making it primary and resealing the old
+ * records before the old key is removed
+ */
+public final class KeyRing {
+    private final ConcurrentHashMap<Integer, SecretKey> keys = new ConcurrentHashMap<Integer, SecretKey>();
+    private volatile int primary = -1; // -1 until a key is added
+
+    /**
+     * Adds a key, making it primary if it is the first one
+     * @param keyId the id stored in envelopes sealed with the key, 0 to 255
+     * @param key the AES key
+     */
+    public synchronized void add(int keyId, SecretKey key) {
+        checkId(keyId);
+        if (key == null) {
+            throw new IllegalArgumentException("key must not be null");
+        }
+        keys.put(keyId, key);
+        if (primary < 0) {
+            primary = keyId;
+        }
+    }
+
+    /**
+     * Makes a key in the ring the one new envelopes are sealed with
+     * @param keyId the id of the key
+     */
+    public synchronized void setPrimary(int keyId) {
+        if (!keys.containsKey(keyId)) {
+            throw new IllegalArgumentException("No key with id " + keyId);
+        }
+        primary = keyId;
+    }
+
+    /**
+     * Removes a key once nothing is sealed with it any more
+     * @param keyId the id of the key
+     */
+    public synchronized void remove(int keyId) {
+        if (keyId == primary) {
+            throw new IllegalArgumentException("The primary key cannot be removed");
+        }
+        keys.remove(keyId);
+    }
+
+    /**
+     * @return the id of the key new envelopes are sealed with, -1 if the ring is empty
+     */
+    public int getPrimaryId() {
+        return primary;
+    }
+
+    /**
+     * @param keyId the id of a key
+     * @return the key, or null if the ring does not hold it
+     */
+    public SecretKey get(int keyId) {
+        return keys.get(keyId);
+    }
+
+    /**
+     * @return the ids of every key in the ring, in ascending order
+     */
+    public Set<Integer> keyIds() {
+        return new TreeSet<Integer>(keys.keySet());
+    }
+
+    private static void checkId(int keyId) {
+        if (keyId < 0 || keyId > 255) {
+            throw new IllegalArgumentException("keyId must be between 0 and 255");
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package PasswordManager;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background job that reseals every stored Envelope of a PasswordSystem with its KeyRing's primary key
+ * To rotate a key, add the new key to the ring, make it primary and run the job. Both keys stay in the
+ * ring while it runs, so records not yet resealed still open. Users are walked in username order a chunk
+ * at a time, and users not already in memory are rewritten in the VaultStore without being loaded into
+ * the system; after each chunk the resealed users are saved and the last username is written to the
+ * checkpoint file, so a job restarted after a crash carries on from there. The job sleeps between
+ * chunks to keep to its CPU share. Once it finishes (and, for a journaled system, after the next
+ * checkpoint) the old key can be removed from the ring. Given the key and IV of encryptPwd, the job also
+ * migrates account passwords written by encryptPwd into envelopes
+ */
+public final class KeyRotation implements Runnable {
+    private static final int DEFAULT_CHUNK_SIZE = 64;
+
+    private final PasswordSystem sys;
+    private final KeyRing ring;
+    private final Path checkpoint; // holds the last username done, null to not checkpoint
+    private final int chunkSize;
+    private volatile double cpuShare = 1.0;
+    private volatile boolean stopping;
+    private volatile String lastUsername;
+    private volatile LegacyKey legacy; // null unless encryptPwd records are migrated
+    private final LongAdder resealed = new LongAdder();
+    private final LongAdder migrated = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder usersDone = new LongAdder();
+
+    /** The single key and IV that encryptPwd records were written with */
+    private static final class LegacyKey {
+        final SecretKey key;
+        final byte[] iv;
+
+        LegacyKey(SecretKey key, byte[] iv) {
+            this.key = key;
+            this.iv = iv.clone();
+        }
+    }
+
+    /**
+     * Creates a rotation job with chunks of 64 users
+     * @param sys the system whose stored passwords are resealed
+     * @param ring the keys, holding the primary key and every key the passwords are sealed with
+     * @param checkpoint the file the progress is kept in, or null to start over after a crash
+     */
+    public KeyRotation(PasswordSystem sys, KeyRing ring, Path checkpoint) {
+        this(sys, ring, checkpoint, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param sys the system whose stored passwords are resealed
+     * @param ring the keys, holding the primary key and every key the passwords are sealed with
+     * @param checkpoint the file the progress is kept in, or null to start over after a crash
+     * @param chunkSize the number of users resealed between checkpoints
+     */
+    public KeyRotation(PasswordSystem sys, KeyRing ring, Path checkpoint, int chunkSize) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunkSize must be at least 1");
+        }
+        this.sys = sys;
+        this.ring = ring;
+        this.checkpoint = checkpoint;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Caps the share of one core the job uses, by sleeping after each chunk in proportion to its run time
+     * May be changed while the job runs, for example lowered during peak hours
+     * @param share the share of one core, above 0 and at most 1
+     */
+    public void setCpuShare(double share) {
+        if (!(share > 0 && share <= 1)) {
+            throw new IllegalArgumentException("share must be above 0 and at most 1");
+        }
+        this.cpuShare = share;
+    }
+
+    /**
+     * Also moves account passwords written by encryptPwd under one key and IV, as older vaults were, into
+     * envelopes sealed with the primary key
+     * User passwords are left alone, since verifyUser(username, password, secretKey, iv) still reads them
+     * that way; those are moved to hashPwd instead
+     * @param key the key encryptPwd was given
+     * @param iv the IV encryptPwd was given for every account password
+     */
+    public void migrateLegacy(SecretKey key, byte[] iv) {
+        if (key == null || iv == null) {
+            throw new IllegalArgumentException("key and iv must not be null");
+        }
+        this.legacy = new LegacyKey(key, iv);
+    }
+
+    /**
+     * Runs the job on a new daemon thread
+     * @return a future completed when every user has been walked, or when the job is stopped
+     */
+    public CompletableFuture<Void> start() {
+        CompletableFuture<Void> done = new CompletableFuture<Void>();
+        Thread thread = new Thread(() -> {
+            try {
+                run();
+                done.complete(null);
+            } catch (RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+        }, "key-rotation");
+        thread.setDaemon(true);
+        thread.start();
+        return done;
+    }
+
+    /**
+     * Asks the job to stop after the chunk it is on; the checkpoint lets a new job carry on later
+     */
+    public void stop() {
+        stopping = true;
+    }
+
+    /**
+     * Walks every user after the checkpoint, resealing a chunk at a time, and deletes the checkpoint at the end
+     */
+    @Override
+    public void run() {
+        String after = readCheckpoint();
+        List<String> usernames = new ArrayList<String>(after == null ? sys.usernames() : sys.usernames().tailSet(after));
+        if (after != null && !usernames.isEmpty() && usernames.get(0).equals(after)) {
+            usernames.remove(0);
+        }
+        for (int start = 0; start < usernames.size(); start += chunkSize) {
+            if (stopping) {
+                return;
+            }
+            long began = System.nanoTime();
+            List<String> chunk = usernames.subList(start, Math.min(start + chunkSize, usernames.size()));
+            for (String username : chunk) {
+                sys.rewritePasswords(username, password -> reseal(password, false), password -> reseal(password, true));
+                usersDone.increment();
+            }
+            sys.flushStore();
+            lastUsername = chunk.get(chunk.size() - 1);
+            writeCheckpoint(lastUsername);
+            throttle(System.nanoTime() - began);
+        }
+        deleteCheckpoint();
+    }
+
+    /**
+     * @return the number of passwords resealed so far
+     */
+    public long getResealed() {
+        return resealed.sum();
+    }
+
+    /**
+     * @return the number of encryptPwd records moved into envelopes so far
+     */
+    public long getMigrated() {
+        return migrated.sum();
+    }
+
+    /**
+     * @return the number of stored passwords left alone because they could not be opened with the ring
+     */
+    public long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * @return the number of users walked so far by this job
+     */
+    public long getUsersDone() {
+        return usersDone.sum();
+    }
+
+    /**
+     * @return the last username of the last finished chunk, null before the first chunk finishes
+     */
+    public String getLastUsername() {
+        return lastUsername;
+    }
+
+    /**
+     * @param stored a stored password
+     * @param migrate true to also move an encryptPwd record into an envelope, if migrateLegacy was called
+     * @return the password resealed with the primary key, or null if it is not an envelope needing it
+     */
+    private String reseal(String stored, boolean migrate) {
+        if (stored == null) {
+            return null;
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(stored);
+        } catch (IllegalArgumentException e) {
+            return null; // not Base64, such as a PBKDF2 hash
+        }
+        LegacyKey legacy = this.legacy;
+        if (migrate && legacy != null) {
+            // tried first, since an encryptPwd record can start with bytes that look like an envelope header;
+            // anything else fails the GCM tag check
+            try {
+                byte[] envelope = Envelope.migrate(bytes, legacy.key, legacy.iv, ring);
+                migrated.increment();
+                return Base64.getEncoder().encodeToString(envelope);
+            } catch (RuntimeException e) {
+                // not an encryptPwd record
+            }
+        }
+        ByteBuffer envelope = ByteBuffer.wrap(bytes);
+        try {
+            if (Envelope.keyId(envelope) == ring.getPrimaryId()) {
+                return null;
+            }
+        } catch (IllegalArgumentException e) {
+            return null; // not an envelope
+        }
+        try {
+            String replacement = Base64.getEncoder().encodeToString(Envelope.reseal(envelope, ring));
+            resealed.increment();
+            return replacement;
+        } catch (RuntimeException e) {
+            skipped.increment(); // key not in the ring, or bytes that only look like an envelope
+            return null;
+        }
+    }
+
+    private void throttle(long workNanos) {
+        double share = cpuShare;
+        if (share >= 1) {
+            return;
+        }
+        long pauseMillis = (long) (workNanos * (1 / share - 1) / 1_000_000);
+        if (pauseMillis > 0) {
+            try {
+                Thread.sleep(pauseMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopping = true;
+            }
+        }
+    }
+
+    private String readCheckpoint() {
+        if (checkpoint == null || !Files.exists(checkpoint)) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeCheckpoint(String username) {
+        if (checkpoint == null) {
+            return;
+        }
+        Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        try {
+            Files.write(temp, username.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, checkpoint, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void deleteCheckpoint() {
+        if (checkpoint == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(checkpoint);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
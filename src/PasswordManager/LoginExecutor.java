@@ -0,0 +1,213 @@
+package PasswordManager;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * Bounded thread pool that runs CPU-heavy login checks off the caller's thread
+ * The pool has a fixed number of threads and a fixed-size queue. When the queue is full a login is either
+ * rejected or run on the caller's thread, by the OverflowPolicy. Concurrent attempts with the same
+ * username and password share one check. Counters of queue and service time are kept for monitoring
+ */
+public final class LoginExecutor implements Closeable {
+    /** What happens to a login when the queue is full */
+    public enum OverflowPolicy {
+        REJECT,        /** The returned future fails with a RejectedExecutionException */
+        RUN_IN_CALLER  /** The login is checked on the calling thread, slowing the caller down */
+    }
+
+    private static final int DEFAULT_QUEUE_PER_THREAD = 64;
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    private final ThreadPoolExecutor pool;
+    private final OverflowPolicy overflow;
+    private final ConcurrentHashMap<Attempt, CompletableFuture<User>> inFlight =
+            new ConcurrentHashMap<Attempt, CompletableFuture<User>>();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder queueNanos = new LongAdder();
+    private final LongAdder serviceNanos = new LongAdder();
+
+    /** A username and the SHA-256 of a password, identifying duplicate attempts without keeping the password */
+    private static final class Attempt {
+        final String username;
+        final ByteBuffer digest;
+
+        Attempt(String username, char[] password) {
+            byte[] bytes = Credentials.encode(password);
+            this.username = username;
+            this.digest = ByteBuffer.wrap(SHA256.get().digest(bytes));
+            Credentials.wipe(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Attempt)) {
+                return false;
+            }
+            Attempt other = (Attempt) o;
+            return username.equals(other.username) && digest.equals(other.digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return username.hashCode() * 31 + digest.hashCode();
+        }
+    }
+
+    /**
+     * Creates a pool with a thread per available core and a queue of 64 logins per thread, rejecting when full
+     */
+    public LoginExecutor() {
+        this(Runtime.getRuntime().availableProcessors(),
+                Runtime.getRuntime().availableProcessors() * DEFAULT_QUEUE_PER_THREAD, OverflowPolicy.REJECT);
+    }
+
+    /**
+     * @param threads the number of threads checking logins
+     * @param queueLimit the most logins waiting for a thread
+     * @param overflow what happens to a login when the queue is full
+     */
+    public LoginExecutor(int threads, int queueLimit, OverflowPolicy overflow) {
+        if (threads < 1 || queueLimit < 1) {
+            throw new IllegalArgumentException("threads and queueLimit must be at least 1");
+        }
+        AtomicInteger count = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueLimit), r -> {
+                    Thread thread = new Thread(r, "login-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.overflow = overflow;
+    }
+
+    /**
+     * Checks a login on the pool, or joins a check of the same username and password already under way
+     * @param username of the User to be verified
+     * @param password of the User to be verified, copied so the caller may wipe it on return
+     * @param check the blocking login check, returning the User or null
+     * @return a future of the caller's own, completed with the User, or null if the login is wrong
+     */
+    CompletableFuture<User> submit(String username, char[] password, BiFunction<String, char[], User> check) {
+        Attempt attempt = new Attempt(username, password);
+        CompletableFuture<User> result = new CompletableFuture<User>();
+        CompletableFuture<User> existing = inFlight.putIfAbsent(attempt, result);
+        if (existing != null) {
+            coalesced.increment();
+            return existing.copy(); // a caller completing or cancelling its future must not reach the others
+        }
+        submitted.increment();
+        char[] copy = Arrays.copyOf(password, password.length);
+        long queued = System.nanoTime();
+        Runnable task = () -> {
+            long started = System.nanoTime();
+            queueNanos.add(started - queued);
+            try {
+                result.complete(check.apply(username, copy));
+            } catch (Throwable t) {
+                result.completeExceptionally(t); // before leaving inFlight, so no joiner is left waiting
+                if (t instanceof Error) {
+                    throw (Error) t;
+                }
+            } finally {
+                Credentials.wipe(copy);
+                serviceNanos.add(System.nanoTime() - started);
+                completed.increment();
+                inFlight.remove(attempt, result);
+            }
+        };
+        try {
+            pool.execute(task);
+        } catch (RejectedExecutionException e) {
+            if (overflow == OverflowPolicy.RUN_IN_CALLER && !pool.isShutdown()) {
+                task.run();
+            } else {
+                rejected.increment();
+                Credentials.wipe(copy);
+                inFlight.remove(attempt, result);
+                result.completeExceptionally(e);
+            }
+        }
+        return result.copy();
+    }
+
+    /**
+     * @return the number of logins handed to the pool, counting rejected but not coalesced ones
+     */
+    public long getSubmitted() {
+        return submitted.sum();
+    }
+
+    /**
+     * @return the number of logins that joined a check already under way
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of logins rejected because the queue was full
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of login checks finished
+     */
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    /**
+     * @return the number of logins waiting for a thread
+     */
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * @return the average time a login waited for a thread, in milliseconds
+     */
+    public double getAverageQueueMillis() {
+        long n = completed.sum();
+        return n == 0 ? 0 : queueNanos.sum() / 1e6 / n;
+    }
+
+    /**
+     * @return the average time a login check took once started, in milliseconds
+     */
+    public double getAverageServiceMillis() {
+        long n = completed.sum();
+        return n == 0 ? 0 : serviceNanos.sum() / 1e6 / n;
+    }
+
+    /**
+     * Stops taking logins; queued logins are still checked
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
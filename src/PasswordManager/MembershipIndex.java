@@ -0,0 +1,158 @@
+package PasswordManager;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of SharedAccount memberships by stable User id
+ * Each SharedAccount holds a map from member id to a role bitmap, so a role check is one hash lookup.
+ * The index keeps the reverse direction, from a user id to the shared accounts the user is a member of,
+ * so listing a user's shared accounts does not scan every SharedAccount. Each PasswordSystem has its own
+ * index of the accounts created or decoded in it; accounts not in any system are kept in DETACHED, which
+ * indexes nothing. Changes to one account's members are made holding that account's member map, so they
+ * are journaled in the order they take effect; role checks and listings read the maps without locking
+ */
+public final class MembershipIndex {
+    static final byte USER_BIT = 1 << Journal.ROLE_USER;
+    static final byte ADMIN_BIT = 1 << Journal.ROLE_ADMIN;
+
+    /** The index of accounts that do not belong to a system, which keeps no reverse entries */
+    static final MembershipIndex DETACHED = new MembershipIndex(null);
+
+    private final ConcurrentHashMap<Long, Set<SharedAccount>> byUser; // null for DETACHED
+
+    /** A member of a SharedAccount and the roles it holds there */
+    static final class Member {
+        final User user;
+        final byte roles; // USER_BIT and ADMIN_BIT
+
+        Member(User user, byte roles) {
+            this.user = user;
+            this.roles = roles;
+        }
+    }
+
+    /**
+     * Creates an empty index
+     */
+    public MembershipIndex() {
+        this(new ConcurrentHashMap<Long, Set<SharedAccount>>());
+    }
+
+    private MembershipIndex(ConcurrentHashMap<Long, Set<SharedAccount>> byUser) {
+        this.byUser = byUser;
+    }
+
+    /**
+     * @param user the user
+     * @return a copy of the shared accounts the user is a member of
+     */
+    public Set<SharedAccount> sharedAccountsFor(User user) {
+        Set<SharedAccount> accounts = byUser == null ? null : byUser.get(user.getId());
+        return accounts == null ? new HashSet<SharedAccount>() : new HashSet<SharedAccount>(accounts);
+    }
+
+    /**
+     * Gives a member a role on an account
+     * @param account the account
+     * @param members the account's member map
+     * @param user the member
+     * @param role Journal.ROLE_ADMIN or Journal.ROLE_USER
+     * @return true if the member did not already have the role
+     */
+    boolean grant(SharedAccount account, ConcurrentHashMap<Long, Member> members, User user, byte role) {
+        byte bit = (byte) (1 << role);
+        Long id = user.getId();
+        while (true) {
+            Member member = members.get(id);
+            if (member == null) {
+                if (members.putIfAbsent(id, new Member(user, bit)) == null) {
+                    link(id, account);
+                    if (!members.containsKey(id)) {
+                        unlink(id, account); // revoked while being linked
+                    }
+                    return true;
+                }
+            } else if ((member.roles & bit) != 0) {
+                return false;
+            } else if (members.replace(id, member, new Member(member.user, (byte) (member.roles | bit)))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes a role on an account away from a member
+     * @param account the account
+     * @param members the account's member map
+     * @param user the member
+     * @param role Journal.ROLE_ADMIN or Journal.ROLE_USER
+     * @return true if the member had the role
+     */
+    boolean revoke(SharedAccount account, ConcurrentHashMap<Long, Member> members, User user, byte role) {
+        byte bit = (byte) (1 << role);
+        Long id = user.getId();
+        while (true) {
+            Member member = members.get(id);
+            if (member == null || (member.roles & bit) == 0) {
+                return false;
+            }
+            byte roles = (byte) (member.roles & ~bit);
+            if (roles == 0) {
+                if (members.remove(id, member)) {
+                    unlink(id, account);
+                    if (members.containsKey(id)) {
+                        link(id, account); // granted again while being unlinked
+                    }
+                    return true;
+                }
+            } else if (members.replace(id, member, new Member(member.user, roles))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Lists an account under each of its members, once it is moved into the index
+     * @param account the account
+     * @param members the account's member map
+     */
+    void register(SharedAccount account, ConcurrentHashMap<Long, Member> members) {
+        for (Long id : members.keySet()) {
+            link(id, account);
+        }
+    }
+
+    /**
+     * Drops an account from the reverse index, once it is deleted, replaced or moved to another index
+     * @param account the account
+     * @param members the account's member map
+     */
+    void unregister(SharedAccount account, ConcurrentHashMap<Long, Member> members) {
+        for (Long id : members.keySet()) {
+            unlink(id, account);
+        }
+    }
+
+    private void link(Long userId, SharedAccount account) {
+        if (byUser == null) {
+            return;
+        }
+        byUser.compute(userId, (id, accounts) -> {
+            Set<SharedAccount> linked = accounts == null ? ConcurrentHashMap.<SharedAccount>newKeySet() : accounts;
+            linked.add(account);
+            return linked;
+        });
+    }
+
+    private void unlink(Long userId, SharedAccount account) {
+        if (byUser == null) {
+            return;
+        }
+        byUser.computeIfPresent(userId, (id, accounts) -> {
+            accounts.remove(account);
+            return accounts.isEmpty() ? null : accounts;
+        });
+    }
+}
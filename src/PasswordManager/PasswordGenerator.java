@@ -1,9 +1,9 @@
 package PasswordManager;
 
-import java.lang.Math;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * @author Kyle
@@ -21,95 +21,105 @@ public class PasswordGenerator {
 //		
 //	}
 	
-	private static final char[] specialChars = {
-			'{','}','[',']','`','~','!','@','#','$','%','^','&','*','(',')','_','-','|','\\','\'','\"','<','>',',','.','/','?','=','+'};
-	private static final char[] lowerCaseChars = {'a','b','c','d','e','f','g','h','i','j','k','l','m','n','o','p','q','r','s','t','u','v','w','x','y','z'};
-	private static final char[] upperCaseChars = {'A','B','C','D','E','F','G','H','I','J','K','L','M','N','O','P','Q','R','S','T','U','V','W','X','Y','Z'};
-	private static final char[] numChars = {'1','2','3','4','5','6','7','8','9','0'};
+	private static final int PARALLEL_BATCH_THRESHOLD = 256;
 	
 	/**
-	 * Generates a password that works with a given PasswordVerifier.
-	 * It randomly adds different allowed characters to the end of the string
-	 * Until the max size is reached. If there is no PasswordVerifier or
-	 * extra criteria is used and the password is not verified, null will be returned
+	 * Generates a password of the maximum allowed length that works with a given PasswordVerifier.
 	 * @param pv the used verifier, should never be null
-	 * @return the generated password, or null if there is an error
+	 * @return the generated password, never null
+	 * @throws IllegalArgumentException if pv is null or its requirements cannot be met
+	 * @see #generatePassword(PasswordVerifier, int)
 	 */
 	public static String generatePassword(PasswordVerifier pv) {
 		if (pv == null) {
-			return null;
+			throw new IllegalArgumentException("A PasswordVerifier is required");
 		}
-		String password = "";
-		int maxSize = pv.maxCharacters();
-		List<Character> allowed = new ArrayList<>(pv.allowedCharacters());
-		int allowedSize = allowed.size();
-		for (int i = 0; i < maxSize; i++) {
-			int index = (int)(Math.random()*allowedSize);
-			password = password + allowed.get(index);
+		return generatePassword(pv, pv.maxCharacters());
+	}
+	
+	/**
+	 * Generates a password of the given length that works with a given PasswordVerifier.
+	 * One character is drawn from each required class, the rest from all allowed characters,
+	 * and the result is shuffled, so a password is always produced in a single pass with no retries.
+	 * Extra criteria added through addCriteria are not considered.
+	 * @param pv the used verifier, should never be null
+	 * @param length the length of the password, between the verifier's min and max characters
+	 * @return the generated password, never null
+	 * @throws IllegalArgumentException if pv is null, the length is outside the verifier's limits,
+	 *         or the requirements cannot be met with the allowed characters
+	 */
+	public static String generatePassword(PasswordVerifier pv, int length) {
+		if (pv == null) {
+			throw new IllegalArgumentException("A PasswordVerifier is required");
+		}
+		PolicySnapshot policy = pv.policySnapshot();
+		if (length < policy.minChars || length > policy.maxChars) {
+			throw new IllegalArgumentException("Length " + length + " is outside " + policy.minChars + " to " + policy.maxChars);
+		}
+		char[][] required = requiredPools(policy);
+		if (length < required.length || (length > 0 && policy.allowed.length == 0)) {
+			throw new IllegalArgumentException("The password requirements cannot be met in " + length + " characters");
+		}
+		BufferedRandom random = BufferedRandom.current();
+		char[] password = new char[length];
+		int i = 0;
+		for (char[] pool : required) {
+			password[i++] = pool[random.nextInt(pool.length)];
+		}
+		for (; i < length; i++) {
+			password[i] = policy.allowed[random.nextInt(policy.allowed.length)];
 		}
-		password = checkNeeded(password,pv);
-		if (pv.verifyPassword(password)) {
-			return password;
-		} else {
-			System.out.println("Here: " +password);
-			return null;
+		for (int j = length - 1; j > 0; j--) {
+			int k = random.nextInt(j + 1);
+			char swap = password[j];
+			password[j] = password[k];
+			password[k] = swap;
 		}
+		String generated = new String(password);
+		Arrays.fill(password, '\0');
+		return generated;
 	}
 	
-	private static String checkNeeded(String password, PasswordVerifier pv) {
-		Set<Character> allowed = pv.allowedCharacters();
-		StringBuilder sb = new StringBuilder(password);
-		int[] indexs = {-1,-1,-1,-1};
-		if (pv.doesNeedLowerCase()) {
-			List<Character> allowedLower = new ArrayList<Character>();
-			for (char c : lowerCaseChars) {
-				if (allowed.contains(c)) {
-					allowedLower.add(c);
-				} 
-			}
-			indexs[0] = (int)(password.length()*Math.random());
-			sb.setCharAt(indexs[0],allowedLower.get((int)(allowedLower.size()*Math.random())));
-		}
-		if (pv.doesNeedUpperCase()) {
-			List<Character> allowedUpper = new ArrayList<Character>();
-			for (char c : upperCaseChars) {
-				if (allowed.contains(c)) {
-					allowedUpper.add(c);
-				} 
-			}
-			indexs[1] = (int)(password.length()*Math.random());
-			while (indexs[1]==indexs[0]) {
-				indexs[1] = (int)(password.length()*Math.random());
-			}
-			sb.setCharAt(indexs[1],allowedUpper.get((int)(allowedUpper.size()*Math.random())));
+	/**
+	 * Generates a batch of passwords that work with a given PasswordVerifier,
+	 * such as when provisioning credentials for many service accounts at once.
+	 * Large batches are spread across the common fork-join pool, each thread
+	 * drawing from its own secure random source
+	 * @param pv the used verifier, should never be null and not be changed while the batch runs
+	 * @param count the number of passwords to generate
+	 * @return the generated passwords
+	 * @throws IllegalArgumentException if pv is null or its requirements cannot be met
+	 */
+	public static List<String> generateBatch(PasswordVerifier pv, int count) {
+		if (pv == null) {
+			throw new IllegalArgumentException("A PasswordVerifier is required");
 		}
-		if (pv.doesNeedNumbers()) {
-			List<Character> allowedNums = new ArrayList<Character>();
-			for (char c : numChars) {
-				if (allowed.contains(c)) {
-					allowedNums.add(c);
-				} 
-			}
-			indexs[2] = (int)(password.length()*Math.random());
-			while (indexs[2]==indexs[0]||indexs[2]==indexs[1]) {
-				indexs[2] = (int)(password.length()*Math.random());
-			}
-			sb.setCharAt(indexs[2],allowedNums.get((int)(allowedNums.size()*Math.random())));
+		IntStream indexes = IntStream.range(0, count);
+		if (count >= PARALLEL_BATCH_THRESHOLD) {
+			indexes = indexes.parallel();
 		}
-		if (pv.doesNeedUpperCase()) {
-			List<Character> allowedSpecial = new ArrayList<Character>();
-			for (char c : specialChars) {
-				if (allowed.contains(c)) {
-					allowedSpecial.add(c);
-				} 
-			}
-			indexs[3] = (int)(password.length()*Math.random());
-			while (indexs[3]==indexs[0]||indexs[2]==indexs[1]||indexs[3]==indexs[2]) {
-				indexs[3] = (int)(password.length()*Math.random());
-			}
-			sb.setCharAt(indexs[3],allowedSpecial.get((int)(allowedSpecial.size()*Math.random())));
+		return indexes.mapToObj(i -> generatePassword(pv)).collect(Collectors.toList());
+	}
+	
+	/**
+	 * @param policy the policy being generated for
+	 * @return the pool of each required character class
+	 * @throws IllegalArgumentException if a required class has no allowed characters
+	 */
+	private static char[][] requiredPools(PolicySnapshot policy) {
+		char[][] pools = new char[4][];
+		int count = 0;
+		if (policy.needLowercase) pools[count++] = nonEmpty(policy.lower, "lower case");
+		if (policy.needCaps) pools[count++] = nonEmpty(policy.upper, "upper case");
+		if (policy.needNums) pools[count++] = nonEmpty(policy.nums, "number");
+		if (policy.needSpecial) pools[count++] = nonEmpty(policy.special, "special");
+		return Arrays.copyOf(pools, count);
+	}
+	
+	private static char[] nonEmpty(char[] pool, String name) {
+		if (pool.length == 0) {
+			throw new IllegalArgumentException("A " + name + " character is needed but none are allowed");
 		}
-		password = sb.toString();		
-		return password;
+		return pool;
 	}
 }
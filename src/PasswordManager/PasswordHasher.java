@@ -0,0 +1,168 @@
+package PasswordManager;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * One-way hashing of User passwords with PBKDF2-HMAC-SHA256 and a random salt per password
+ * Hashes are stored as "pbkdf2-sha256$iterations$salt$hash" with Base64 salt and hash, so each one
+ * keeps the iteration count it was made with and the count can be raised without breaking old hashes
+ */
+public final class PasswordHasher {
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String PREFIX = "pbkdf2-sha256";
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_BITS = 256;
+    private static final int DEFAULT_ITERATIONS = 600_000;
+    private static final int MIN_ITERATIONS = 10_000;
+    private static final int CALIBRATION_ITERATIONS = 20_000;
+    private static final int CALIBRATION_ROUNDS = 5;
+    private static final long WARMUP_NANOS = 500_000_000L;
+    private static final SecureRandom SALTS = new SecureRandom();
+    private static final ThreadLocal<SecretKeyFactory> FACTORIES = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    private final int iterations;
+
+    /**
+     * Creates a hasher with the default iteration count
+     */
+    public PasswordHasher() {
+        this(DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * @param iterations the PBKDF2 iteration count for new hashes, at least 10000
+     */
+    public PasswordHasher(int iterations) {
+        if (iterations < MIN_ITERATIONS) {
+            throw new IllegalArgumentException("iterations must be at least " + MIN_ITERATIONS);
+        }
+        this.iterations = iterations;
+    }
+
+    /**
+     * Creates a hasher whose hashes take about the target time to check on this machine
+     * Warms up the JIT, times a few short runs and scales the iteration count from the fastest, so a noisy
+     * run does not lower the cost. Never goes below 10000 iterations
+     * @param targetMillis the time one hash or verify should take
+     * @return the calibrated hasher
+     */
+    public static PasswordHasher calibrate(long targetMillis) {
+        if (targetMillis <= 0) {
+            throw new IllegalArgumentException("targetMillis must be positive");
+        }
+        char[] probe = "calibration".toCharArray();
+        byte[] salt = new byte[SALT_LENGTH];
+        long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() - warmupEnd < 0) {
+            Credentials.wipe(derive(probe, salt, CALIBRATION_ITERATIONS));
+        }
+        long fastest = Long.MAX_VALUE;
+        for (int i = 0; i < CALIBRATION_ROUNDS; i++) {
+            long start = System.nanoTime();
+            Credentials.wipe(derive(probe, salt, CALIBRATION_ITERATIONS));
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        long iterations = targetMillis * 1_000_000L * CALIBRATION_ITERATIONS / Math.max(1, fastest);
+        return new PasswordHasher((int) Math.max(MIN_ITERATIONS, Math.min(Integer.MAX_VALUE, iterations)));
+    }
+
+    /**
+     * @return the PBKDF2 iteration count for new hashes
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Hashes a password with a new random salt
+     * @param password the plaintext password, left for the caller to wipe
+     * @return the encoded hash
+     */
+    public String hash(char[] password) {
+        byte[] salt = new byte[SALT_LENGTH];
+        SALTS.nextBytes(salt);
+        byte[] hash = derive(password, salt, iterations);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + "$" + iterations + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(hash);
+    }
+
+    /**
+     * Checks a password against an encoded hash, comparing in constant time
+     * @param password the plaintext password, left for the caller to wipe
+     * @param encoded a hash made by hash, with any iteration count
+     * @return true if the password matches, false if it does not or the hash is not a PBKDF2 hash
+     */
+    public boolean verify(char[] password, String encoded) {
+        String[] parts = split(encoded);
+        if (parts == null) {
+            return false;
+        }
+        try {
+            int storedIterations = Integer.parseInt(parts[1]);
+            byte[] salt = Base64.getDecoder().decode(parts[2]);
+            byte[] expected = Base64.getDecoder().decode(parts[3]);
+            if (storedIterations < 1 || expected.length * 8 != HASH_BITS) {
+                return false;
+            }
+            byte[] actual = derive(password, salt, storedIterations);
+            try {
+                return MessageDigest.isEqual(actual, expected);
+            } finally {
+                Credentials.wipe(actual);
+            }
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param encoded a stored password
+     * @return true if the stored password is a PBKDF2 hash, otherwise false
+     */
+    public static boolean isHash(String encoded) {
+        return split(encoded) != null;
+    }
+
+    /**
+     * @param encoded a hash made by hash
+     * @return true if the hash uses fewer iterations than this hasher and should be replaced after a login
+     */
+    public boolean needsRehash(String encoded) {
+        String[] parts = split(encoded);
+        try {
+            return parts == null || Integer.parseInt(parts[1]) < iterations;
+        } catch (NumberFormatException e) {
+            return true;
+        }
+    }
+
+    private static String[] split(String encoded) {
+        if (encoded == null || !encoded.startsWith(PREFIX + "$")) {
+            return null;
+        }
+        String[] parts = encoded.split("\\$");
+        return parts.length == 4 ? parts : null;
+    }
+
+    private static byte[] derive(char[] password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_BITS);
+        try {
+            return FACTORIES.get().generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package PasswordManager;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded, time-ordered history of an Account's previous passwords
+ * Only a keyed fingerprint (HMAC-SHA256, truncated to 64 bits) of each password is kept, never the password.
+ * The key is random per history, so fingerprints cannot be compared across accounts. Once the history
+ * holds its capacity, adding a password drops the oldest one, so memory stays constant however often
+ * the account is rotated. Reuse checks look the fingerprint up in an index instead of scanning the history
+ */
+public final class PasswordHistory {
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int KEY_LENGTH = 32;
+    private static final SecureRandom KEYS = new SecureRandom();
+    private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(MAC_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    });
+
+    private final byte[] key;
+    private final long[] dates;        // ring of the times each password was set, in milliseconds
+    private final long[] fingerprints; // ring of password fingerprints, parallel to dates
+    private final Map<Long, Integer> index = new HashMap<Long, Integer>(); // fingerprint to number of entries
+    private int oldest;
+    private int size;
+
+    /**
+     * Creates an empty history
+     * @param capacity the most passwords remembered, at least 0
+     */
+    public PasswordHistory(int capacity) {
+        this(capacity, newKey());
+    }
+
+    private PasswordHistory(int capacity, byte[] key) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+        this.key = key;
+        this.dates = new long[capacity];
+        this.fingerprints = new long[capacity];
+    }
+
+    /**
+     * Restores a saved history
+     * @param capacity the most passwords remembered
+     * @param key the fingerprint key of the saved history
+     * @param dates the times each password was set, oldest first
+     * @param fingerprints the fingerprint of each password, parallel to dates
+     * @return the restored history, keeping only the newest entries if there are more than capacity
+     */
+    static PasswordHistory restore(int capacity, byte[] key, long[] dates, long[] fingerprints) {
+        PasswordHistory history = new PasswordHistory(capacity, key.clone());
+        for (int i = 0; i < dates.length; i++) {
+            history.addFingerprint(dates[i], fingerprints[i]);
+        }
+        return history;
+    }
+
+    /**
+     * @return a history with the same key and entries, unaffected by later changes to this one
+     */
+    synchronized PasswordHistory copy() {
+        return restore(dates.length, key, dateMillis(), fingerprints());
+    }
+
+    /**
+     * Remembers a password, dropping the oldest one if the history is full
+     * @param date the time the password was set
+     * @param password the password
+     */
+    public synchronized void add(Date date, String password) {
+        addFingerprint(date.getTime(), fingerprint(password));
+    }
+
+    /**
+     * Remembers a password by a fingerprint made with fingerprint, such as one read back from the journal
+     * @param date the time the password was set
+     * @param fingerprint the fingerprint of the password
+     */
+    synchronized void add(Date date, long fingerprint) {
+        addFingerprint(date.getTime(), fingerprint);
+    }
+
+    /**
+     * @param password the password to look for
+     * @return true if the password is one of the remembered passwords, otherwise false
+     */
+    public synchronized boolean contains(String password) {
+        return size > 0 && index.containsKey(fingerprint(password));
+    }
+
+    /**
+     * @return the number of passwords remembered
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return the most passwords remembered
+     */
+    public int capacity() {
+        return dates.length;
+    }
+
+    /**
+     * @return the times each remembered password was set, oldest first
+     */
+    public synchronized List<Date> getDates() {
+        List<Date> result = new ArrayList<Date>(size);
+        for (int i = 0; i < size; i++) {
+            result.add(new Date(dates[slot(i)]));
+        }
+        return result;
+    }
+
+    /**
+     * @return a copy of the fingerprint key
+     */
+    byte[] key() {
+        return key.clone();
+    }
+
+    /**
+     * @return the times each remembered password was set, oldest first
+     */
+    synchronized long[] dateMillis() {
+        long[] result = new long[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = dates[slot(i)];
+        }
+        return result;
+    }
+
+    /**
+     * @return the fingerprint of each remembered password, oldest first
+     */
+    synchronized long[] fingerprints() {
+        long[] result = new long[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = fingerprints[slot(i)];
+        }
+        return result;
+    }
+
+    private void addFingerprint(long date, long fingerprint) {
+        if (dates.length == 0) {
+            return;
+        }
+        if (size == dates.length) {
+            unindex(fingerprints[oldest]);
+            oldest = (oldest + 1) % dates.length;
+            size--;
+        }
+        int slot = slot(size);
+        dates[slot] = date;
+        fingerprints[slot] = fingerprint;
+        index.merge(fingerprint, 1, Integer::sum);
+        size++;
+    }
+
+    private void unindex(long fingerprint) {
+        index.computeIfPresent(fingerprint, (f, count) -> count == 1 ? null : count - 1);
+    }
+
+    private int slot(int position) {
+        return (oldest + position) % dates.length;
+    }
+
+    /**
+     * @param password a password
+     * @return the fingerprint the history remembers the password by
+     */
+    long fingerprint(String password) {
+        byte[] bytes = password.getBytes(StandardCharsets.UTF_8);
+        try {
+            return fingerprint(bytes);
+        } finally {
+            Credentials.wipe(bytes);
+        }
+    }
+
+    /**
+     * @param password the UTF-8 bytes of a password, left for the caller to wipe
+     * @return the fingerprint the history remembers the password by
+     */
+    long fingerprint(byte[] password) {
+        try {
+            Mac mac = MACS.get();
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return ByteBuffer.wrap(mac.doFinal(password)).getLong();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] newKey() {
+        byte[] key = new byte[KEY_LENGTH];
+        KEYS.nextBytes(key);
+        return key;
+    }
+}
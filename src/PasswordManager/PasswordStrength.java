@@ -0,0 +1,42 @@
+package PasswordManager;
+
+/**
+ * Estimated strength of a password, as worked out by PasswordVerifier.estimateStrength
+ * The entropy is the number of bits an attacker who knows the policy and common patterns
+ * (dictionary words, sequences, repeats and keyboard walks) would need to guess. The score buckets it:
+ * 0 below 28 bits, 1 below 36, 2 below 60, 3 below 80 and 4 from 80 bits up
+ */
+public final class PasswordStrength {
+    private static final double[] SCORE_BITS = {28, 36, 60, 80};
+
+    private final double entropy;
+    private final int score;
+
+    PasswordStrength(double entropy) {
+        this.entropy = entropy;
+        int score = 0;
+        while (score < SCORE_BITS.length && entropy >= SCORE_BITS[score]) {
+            score++;
+        }
+        this.score = score;
+    }
+
+    /**
+     * @return the estimated entropy in bits
+     */
+    public double getEntropy() {
+        return entropy;
+    }
+
+    /**
+     * @return the score from 0 (trivially guessed) to 4 (very strong)
+     */
+    public int getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("score %d (%.1f bits)", score, entropy);
+    }
+}
@@ -1,13 +1,20 @@
 package PasswordManager;
 
-import javax.crypto.*;
-import javax.crypto.spec.GCMParameterSpec;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
+import javax.crypto.SecretKey;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * @Author Ashton Gabbeitt
@@ -16,62 +23,289 @@ import java.util.Base64;
 public class PasswordSystem {
     private Set<User> users;
     private Set<User> administrators;
-    private static final String ALGORITHM = "AES/GCM/NoPadding";
-    private static final int GCM_TAG_LENGTH = 128;
+    private Map<String, User> usersByName; // username index over users, kept in step by add/edit/removeUser
+    private final Object[] locks; // striped by username, guards the multi-step user and admin edits
+    private final VaultStore store; // null when the system only lives in memory
+    private final Journal journal;  // null when account changes are only stored through saveUser
+    private final MembershipIndex memberships = new MembershipIndex(); // shared accounts of this system by member
+    private volatile PasswordHasher hasher = new PasswordHasher(); // hashes User passwords for verifyUser(username, password)
+    private volatile LoginExecutor loginExecutor; // runs verifyUserAsync, created on first use unless set
+    private volatile String dummyHash; // checked for unknown usernames so they take as long as known ones
+    private static final int LOCK_STRIPES = 64;
+    private static final int PARALLEL_BATCH_THRESHOLD = 1024;
 
+    /**
+     * Creates an empty PasswordSystem
+     * Users and administrators are held in concurrent sets, so logins never block;
+     * edits only lock the stripes of the usernames they touch
+     */
     public PasswordSystem() {
-        this.users = new HashSet<User>();
-        this.administrators = new HashSet<User>();
+        this(null);
+    }
+
+    /**
+     * Creates a PasswordSystem backed by an on-disk VaultStore
+     * Users are written to the store as they are added, edited and removed, and stored users are only
+     * read back on their first lookup, so getUsers and getAdmins hold the users looked up so far
+     * @param store the store to read and write users through, or null to keep the system in memory
+     */
+    public PasswordSystem(VaultStore store) {
+        this(store, null);
+    }
+
+    /**
+     * Creates a PasswordSystem backed by an on-disk VaultStore, with account changes logged to a Journal
+     * Changes already in the journal are replayed onto the stored users and written back to the store
+     * before the system is returned. Changes made through a User or Account of the system are durable
+     * once the method making them returns
+     * @param store the store to read and write users through
+     * @param journal the journal to log account changes to, or null to only store them through saveUser
+     */
+    public PasswordSystem(VaultStore store, Journal journal) {
+        if (journal != null && store == null) {
+            throw new IllegalArgumentException("A Journal needs a VaultStore to replay onto");
+        }
+        this.store = store;
+        this.journal = journal;
+        this.users = ConcurrentHashMap.newKeySet();
+        this.administrators = ConcurrentHashMap.newKeySet();
+        this.usersByName = new ConcurrentHashMap<String, User>();
+        this.locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        if (journal != null) {
+            journal.replay(this);
+            checkpoint();
+        }
+    }
+
+    /**
+     * Writes every User in memory to the VaultStore and empties the Journal
+     * No account changes should be made while this runs
+     */
+    public void checkpoint() {
+        if (store == null) {
+            return;
+        }
+        for (User user : users) {
+            saveUser(user);
+        }
+        store.flush();
+        if (journal != null) {
+            journal.reset();
+        }
     }
 
     /**
      * Encrypts a plaintext string
      * @param password the plaintext string to be encrypted
      * @param secretKey the SecretKey value to be used for encryption
-     * @param iv initialization vector for GCMParametersSpec, required for the encryption Cipher
+     * @param iv a fresh initialization vector for GCMParametersSpec, never reused with the same key
      * @return the encrypted string
+     * @throws IllegalArgumentException if the IV is not valid for the cipher
      */
     public String encryptPwd(String password, SecretKey secretKey, byte[] iv) {
+        byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
         try {
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-            try {
-                cipher.init(Cipher.ENCRYPT_MODE, secretKey, gcmParameterSpec);
-                try {
-                    byte[] encryptedBytes = cipher.doFinal(password.getBytes());
-                    return Base64.getEncoder().encodeToString(encryptedBytes);
-                } catch (BadPaddingException | IllegalBlockSizeException e ) {
-                    throw new RuntimeException(e);
-                }
+            return Base64.getEncoder().encodeToString(CryptoEngine.encrypt(passwordBytes, secretKey, iv));
+        } finally {
+            Credentials.wipe(passwordBytes);
+        }
+    }
 
+    /**
+     * Encrypts a plaintext password held in a char array
+     * No String copy of the password is made, and the encoded bytes are zeroed once encrypted
+     * @param password the plaintext password to be encrypted, left for the caller to wipe
+     * @param secretKey the SecretKey value to be used for encryption
+     * @param iv a fresh initialization vector for GCMParametersSpec, never reused with the same key
+     * @return the encrypted string
+     * @throws IllegalArgumentException if the IV is not valid for the cipher
+     */
+    public String encryptPwd(char[] password, SecretKey secretKey, byte[] iv) {
+        byte[] passwordBytes = Credentials.encode(password);
+        try {
+            return Base64.getEncoder().encodeToString(CryptoEngine.encrypt(passwordBytes, secretKey, iv));
+        } finally {
+            Credentials.wipe(passwordBytes);
+        }
+    }
+
+    /**
+     * Decrypts a string produced by encryptPwd
+     * @param encryptedPassword the encrypted string
+     * @param secretKey the SecretKey value to be used for decryption
+     * @param iv initialization vector the string was encrypted with
+     * @return the plaintext string
+     */
+    public String decryptPwd(String encryptedPassword, SecretKey secretKey, byte[] iv) {
+        byte[] decryptedBytes = CryptoEngine.decrypt(Base64.getDecoder().decode(encryptedPassword), secretKey, iv);
+        try {
+            return new String(decryptedBytes, StandardCharsets.UTF_8);
+        } finally {
+            Credentials.wipe(decryptedBytes);
+        }
+    }
+
+    /**
+     * Encrypts a batch of plaintext strings, such as the passwords of an imported vault
+     * Large batches are split across the common fork-join pool, each worker reusing its cached Cipher
+     * @param passwords the plaintext strings to be encrypted
+     * @param secretKey the SecretKey value to be used for encryption
+     * @param ivs a fresh initialization vector for each password, in the same order as passwords
+     * @return the encrypted strings, in the same order as passwords
+     * @throws IllegalArgumentException if there is not one IV per password or two of them are the same
+     */
+    public List<String> encryptAll(List<String> passwords, SecretKey secretKey, List<byte[]> ivs) {
+        checkIvs(passwords, ivs);
+        Set<ByteBuffer> distinct = new HashSet<ByteBuffer>();
+        for (byte[] iv : ivs) {
+            if (!distinct.add(ByteBuffer.wrap(iv))) {
+                throw new IllegalArgumentException("Every password needs its own IV");
             }
-            catch (InvalidKeyException ex) {
-                throw new RuntimeException(ex);
-            }
-        } catch (InvalidAlgorithmParameterException | NoSuchAlgorithmException | NoSuchPaddingException et) {
-            throw new RuntimeException(et);
         }
+        return batch(passwords.size()).mapToObj(i -> encryptPwd(passwords.get(i), secretKey, ivs.get(i)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Decrypts a batch of strings produced by encryptPwd, such as the passwords of a vault being re-keyed
+     * Large batches are split across the common fork-join pool, each worker reusing its cached Cipher
+     * @param encryptedPasswords the encrypted strings
+     * @param secretKey the SecretKey value to be used for decryption
+     * @param ivs the initialization vector each string was encrypted with, in the same order
+     * @return the plaintext strings, in the same order as encryptedPasswords
+     */
+    public List<String> decryptAll(List<String> encryptedPasswords, SecretKey secretKey, List<byte[]> ivs) {
+        checkIvs(encryptedPasswords, ivs);
+        return batch(encryptedPasswords.size())
+                .mapToObj(i -> decryptPwd(encryptedPasswords.get(i), secretKey, ivs.get(i)))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Seals a plaintext password in an Envelope with the ring's primary key and a fresh random IV
+     * @param password the plaintext password to be sealed
+     * @param ring the keys, whose primary key is used
+     * @return the Base64 envelope
+     */
+    public String sealPwd(String password, KeyRing ring) {
+        return Envelope.sealPassword(password, ring);
+    }
+
+    /**
+     * Seals a plaintext password held in a char array in an Envelope, without a String copy
+     * @param password the plaintext password to be sealed, left for the caller to wipe
+     * @param ring the keys, whose primary key is used
+     * @return the Base64 envelope
+     */
+    public String sealPwd(char[] password, KeyRing ring) {
+        byte[] passwordBytes = Credentials.encode(password);
+        try {
+            return Base64.getEncoder().encodeToString(Envelope.seal(passwordBytes, ring));
+        } finally {
+            Credentials.wipe(passwordBytes);
+        }
+    }
+
+    /**
+     * Opens a password sealed by sealPwd, with whichever key in the ring it was sealed with
+     * @param sealedPassword the Base64 envelope
+     * @param ring the keys
+     * @return the plaintext password
+     */
+    public String openPwd(String sealedPassword, KeyRing ring) {
+        byte[] passwordBytes = Envelope.open(ByteBuffer.wrap(Base64.getDecoder().decode(sealedPassword)), ring);
+        try {
+            return new String(passwordBytes, StandardCharsets.UTF_8);
+        } finally {
+            Credentials.wipe(passwordBytes);
         }
+    }
+
+    /**
+     * Reseals a batch of passwords sealed by sealPwd with the ring's primary key, such as after a key change
+     * Passwords already sealed with the primary key are returned as they are. Large batches are split
+     * across the common fork-join pool
+     * @param sealedPasswords the Base64 envelopes
+     * @param ring the keys, holding every key the passwords were sealed with and the primary key
+     * @return the resealed envelopes, in the same order as sealedPasswords
+     */
+    public List<String> resealAll(List<String> sealedPasswords, KeyRing ring) {
+        return Envelope.resealAll(batch(sealedPasswords.size()).mapToObj(sealedPasswords::get), ring)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Seals a batch of plaintext passwords, such as those of an imported vault, each with a fresh random IV
+     * Large batches are split across the common fork-join pool, each worker reusing its cached Cipher
+     * @param passwords the plaintext passwords to be sealed
+     * @param ring the keys, whose primary key is used
+     * @return the Base64 envelopes, in the same order as passwords
+     */
+    public List<String> sealAll(List<String> passwords, KeyRing ring) {
+        return batch(passwords.size()).mapToObj(i -> sealPwd(passwords.get(i), ring)).collect(Collectors.toList());
+    }
+
+    /**
+     * Moves a batch of passwords written by encryptPwd into envelopes sealed with the ring's primary key,
+     * each with a fresh random IV. Large batches are split across the common fork-join pool
+     * @param encryptedPasswords the strings written by encryptPwd
+     * @param secretKey the key the strings were encrypted with
+     * @param ivs the initialization vector each string was encrypted with, in the same order
+     * @param ring the keys, whose primary key is used
+     * @return the Base64 envelopes, in the same order as encryptedPasswords
+     */
+    public List<String> migrateAll(List<String> encryptedPasswords, SecretKey secretKey, List<byte[]> ivs,
+            KeyRing ring) {
+        checkIvs(encryptedPasswords, ivs);
+        Base64.Decoder decoder = Base64.getDecoder();
+        Base64.Encoder encoder = Base64.getEncoder();
+        return batch(encryptedPasswords.size())
+                .mapToObj(i -> encoder.encodeToString(
+                        Envelope.migrate(decoder.decode(encryptedPasswords.get(i)), secretKey, ivs.get(i), ring)))
+                .collect(Collectors.toList());
+    }
 
     /**
      * Adds a user to the system set of Users
+     * A user added under a username that is already taken replaces the previous holder in the username index
      * @param user to be added
      */
     public void addUser(User user) {
-        users.add(user);
+        synchronized (lockFor(user.getUsername())) {
+            indexUser(user);
+        }
     }
 
     /**
      * Edits an existing user
+     * Usernames are indexed when the user is added, so a rename must go through this method
+     * rather than User.setUsername on a user already in the system
      * @param existingUser the user to be edited
      * @param newUserInfo the user info to overwrite with
      */
     public void editUser(User existingUser, User newUserInfo) {
-            if (users.contains(existingUser)) {
-                users.remove(existingUser);
-                users.add(newUserInfo);
+        Object first = lockFor(existingUser.getUsername());
+        Object second = lockFor(newUserInfo.getUsername());
+        if (stripe(existingUser.getUsername()) > stripe(newUserInfo.getUsername())) {
+            Object swap = first;
+            first = second;
+            second = swap;
+        }
+        synchronized (first) {
+            synchronized (second) {
+                if (users.remove(existingUser)) {
+                    usersByName.remove(existingUser.getUsername(), existingUser);
+                    existingUser.attach(null, MembershipIndex.DETACHED);
+                    if (store != null && !existingUser.getUsername().equals(newUserInfo.getUsername())) {
+                        store.deleteUser(existingUser.getUsername());
+                    }
+                    indexUser(newUserInfo);
+                }
             }
-
+        }
     }
 
     /**
@@ -79,7 +313,153 @@ public class PasswordSystem {
      * @param user the user to be removed
      */
     public void removeUser(User user) {
-        users.remove(user);
+        synchronized (lockFor(user.getUsername())) {
+            if (users.remove(user)) {
+                usersByName.remove(user.getUsername(), user);
+                user.attach(null, MembershipIndex.DETACHED);
+                if (store != null) {
+                    store.deleteUser(user.getUsername());
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up a system User by username
+     * @param username of the User to look for
+     * @return the User if one is registered under the username, null otherwise
+     */
+    public User getUser(String username) {
+        User user = usersByName.get(username);
+        if (user != null || store == null) {
+            return user;
+        }
+        return loadUser(username);
+    }
+
+    /**
+     * Looks up a system User by id, such as a member of a SharedAccount being decoded
+     * Must not be called while holding a lock stripe or the store's lock, since it may load the User
+     * @param id of the User to look for
+     * @return the User if one is stored under the id, null otherwise
+     */
+    User userById(long id) {
+        String username = store == null ? null : store.usernameOf(id);
+        User user = username == null ? null : getUser(username);
+        return user != null && user.getId() == id ? user : null;
+    }
+
+    /**
+     * Writes a system User and its Accounts to the VaultStore, if the system has one
+     * Changes made through the User itself, such as adding an Account, are not seen by the
+     * system and are only stored once this is called
+     * @param user the user to be written
+     */
+    public void saveUser(User user) {
+        if (store != null) {
+            synchronized (lockFor(user.getUsername())) {
+                store.putUser(user);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the stored passwords of a User and its Accounts, such as to reseal them under a new key
+     * A User already in memory is changed in place and saved. One only in the VaultStore is rewritten there,
+     * without being decoded or kept in memory, so a job walking the whole vault does not load all of it
+     * @param username of the user
+     * @param userRewrite maps the User's password to its replacement, or to null to leave it
+     * @param accountRewrite maps an Account's password to its replacement, or to null to leave it
+     * @return true if any password was replaced
+     */
+    boolean rewritePasswords(String username, UnaryOperator<String> userRewrite, UnaryOperator<String> accountRewrite) {
+        User user;
+        synchronized (lockFor(username)) {
+            // holding the stripe keeps the user from being loaded while its records are rewritten
+            user = usersByName.get(username);
+            if (user == null) {
+                return store != null && store.rewritePasswords(username, userRewrite, accountRewrite);
+            }
+        }
+        boolean changed = false;
+        String password = user.getPassword();
+        String replacement = password == null ? null : userRewrite.apply(password);
+        if (replacement != null && replaceSealedPassword(user, password, replacement)) {
+            changed = true;
+        }
+        for (String label : user.getAccountLabels()) {
+            Account account = user.getAccount(label);
+            password = account == null ? null : account.getPassword();
+            replacement = password == null ? null : accountRewrite.apply(password);
+            if (replacement != null && account.replaceSealedPassword(password, replacement)) {
+                changed = true;
+            }
+        }
+        if (changed) {
+            saveUser(user);
+        }
+        return changed;
+    }
+
+    /**
+     * Swaps a User's stored password for the same password sealed another way, such as under a new key
+     * @param user the user
+     * @param expected the stored password the replacement was made from
+     * @param replacement the same password sealed again
+     * @return true if the password was replaced, false if it changed meanwhile
+     */
+    private boolean replaceSealedPassword(User user, String expected, String replacement) {
+        synchronized (lockFor(user.getUsername())) {
+            if (!expected.equals(user.getPassword())) {
+                return false;
+            }
+            user.setPassword(replacement);
+            return true;
+        }
+    }
+
+    /**
+     * Forces the users saved so far to disk, if the system has a VaultStore
+     */
+    void flushStore() {
+        if (store != null) {
+            store.flush();
+        }
+    }
+
+    /**
+     * @return the username of every system User, in memory or only in the VaultStore, in ascending order
+     */
+    SortedSet<String> usernames() {
+        SortedSet<String> usernames = new TreeSet<String>(usersByName.keySet());
+        if (store != null) {
+            usernames.addAll(store.usernames());
+        }
+        return usernames;
+    }
+
+    /**
+     * Lists the shared accounts a User is a member of, from the system's membership index rather than a scan
+     * Accounts still in their stored form are found through the VaultStore's member ids and decoded, loading
+     * the Users holding them
+     * @param user the user
+     * @return the shared accounts of the system the user is an admin or user of
+     */
+    public Set<SharedAccount> sharedAccountsFor(User user) {
+        Set<SharedAccount> accounts = memberships.sharedAccountsFor(user);
+        if (store != null) {
+            for (Map.Entry<String, List<String>> stored : store.sharedAccountLabels(user.getId()).entrySet()) {
+                User owner = getUser(stored.getKey());
+                for (String label : owner == null ? List.<String>of() : stored.getValue()) {
+                    Account account = owner.getAccount(label);
+                    if (account instanceof SharedAccount) {
+                        accounts.add((SharedAccount) account);
+                    }
+                }
+            }
+        }
+        accounts.removeIf(account -> !account.hasMember(user.getId())); // stored since, or changed in memory
+        return accounts;
     }
 
     /**
@@ -96,6 +476,9 @@ public class PasswordSystem {
      */
     public void addAdministrator(User user) {
         administrators.add(user);
+        if (store != null) {
+            store.putAdmin(user.getUsername(), true);
+        }
     }
 
     /**
@@ -104,9 +487,14 @@ public class PasswordSystem {
      * @param newAdminInfo the admin User info to overwrite with
      */
     public void editAdmin(User admin, User newAdminInfo) {
-        if (administrators.contains(admin)) {
-            administrators.remove(admin);
-            administrators.add(newAdminInfo);
+        synchronized (lockFor(admin.getUsername())) {
+            if (administrators.remove(admin)) {
+                administrators.add(newAdminInfo);
+                if (store != null) {
+                    store.putAdmin(admin.getUsername(), false);
+                    store.putAdmin(newAdminInfo.getUsername(), true);
+                }
+            }
         }
     }
 
@@ -116,7 +504,9 @@ public class PasswordSystem {
      * @param admin the user to be removed
      */
     public void removeAdmin(User admin) {
-        users.remove(admin);
+        if (administrators.remove(admin) && store != null) {
+            store.putAdmin(admin.getUsername(), false);
+        }
     }
 
     /**
@@ -127,6 +517,151 @@ public class PasswordSystem {
         return administrators;
     }
 
+    /**
+     * Sets the hasher used by hashPwd and verifyUser(username, password)
+     * Existing hashes keep working, and are upgraded on login if the new hasher uses more iterations
+     * @param hasher the hasher, for example from PasswordHasher.calibrate
+     */
+    public void setPasswordHasher(PasswordHasher hasher) {
+        if (hasher == null) {
+            throw new IllegalArgumentException("hasher must not be null");
+        }
+        this.hasher = hasher;
+        this.dummyHash = null;
+    }
+
+    /**
+     * Hashes a User password with a new random salt, for storing as the User's password
+     * @param password the plaintext password, left for the caller to wipe
+     * @return the encoded hash
+     */
+    public String hashPwd(char[] password) {
+        return hasher.hash(password);
+    }
+
+    /**
+     * Hashes a User password with a new random salt, for storing as the User's password
+     * @param password the plaintext password
+     * @return the encoded hash
+     */
+    public String hashPwd(String password) {
+        char[] passwordChars = password.toCharArray();
+        try {
+            return hashPwd(passwordChars);
+        } finally {
+            Credentials.wipe(passwordChars);
+        }
+    }
+
+    /**
+     * Verifies the username and password of a system User whose password was stored with hashPwd
+     * @param username of the User to be verified
+     * @param password of the User to be verified
+     * @return the User if the username and password match that of a system User
+     */
+    public User verifyUser(String username, String password) {
+        char[] passwordChars = password.toCharArray();
+        try {
+            return verifyUser(username, passwordChars);
+        } finally {
+            Credentials.wipe(passwordChars);
+        }
+    }
+
+    /**
+     * Verifies the username and password of a system User whose password was stored with hashPwd
+     * The hashes are compared in constant time, and an unknown username is checked against a dummy hash
+     * so it takes as long as a known one. A hash made with fewer iterations than the current hasher
+     * is replaced after a successful login
+     * @param username of the User to be verified
+     * @param password of the User to be verified, left for the caller to wipe
+     * @return the User if the username and password match that of a system User
+     */
+    public User verifyUser(String username, char[] password) {
+        PasswordHasher current = this.hasher;
+        User user = getUser(username);
+        if (user == null || !PasswordHasher.isHash(user.getPassword())) {
+            current.verify(password, dummyHash(current));
+            return null;
+        }
+        String stored = user.getPassword();
+        if (!current.verify(password, stored)) {
+            return null;
+        }
+        if (current.needsRehash(stored)) {
+            String rehashed = current.hash(password); // the slow part, kept off the lock stripe
+            synchronized (lockFor(username)) {
+                // only replace the hash just verified; a concurrent password change or re-add wins
+                if (usersByName.get(username) == user && stored.equals(user.getPassword())) {
+                    user.setPassword(rehashed);
+                    if (store != null) {
+                        store.putUser(user);
+                    }
+                }
+            }
+        }
+        return user;
+    }
+
+    /**
+     * Verifies the username and password of a system User on the login pool
+     * @param username of the User to be verified
+     * @param password of the User to be verified
+     * @return a future completed with the User if the username and password match, otherwise null;
+     * failed with a RejectedExecutionException if the pool is overloaded
+     */
+    public CompletableFuture<User> verifyUserAsync(String username, String password) {
+        char[] passwordChars = password.toCharArray();
+        try {
+            return verifyUserAsync(username, passwordChars);
+        } finally {
+            Credentials.wipe(passwordChars);
+        }
+    }
+
+    /**
+     * Verifies the username and password of a system User on the login pool, as verifyUser(username, password)
+     * Concurrent attempts with the same username and password share one check
+     * @param username of the User to be verified
+     * @param password of the User to be verified, copied so it may be wiped as soon as this returns
+     * @return a future completed with the User if the username and password match, otherwise null;
+     * failed with a RejectedExecutionException if the pool is overloaded
+     */
+    public CompletableFuture<User> verifyUserAsync(String username, char[] password) {
+        return getLoginExecutor().submit(username, password, this::verifyUser);
+    }
+
+    /**
+     * Sets the pool verifyUserAsync runs on, closing the pool it replaces
+     * @param executor the pool, for example with a different size, queue limit or overflow policy
+     */
+    public synchronized void setLoginExecutor(LoginExecutor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        LoginExecutor previous = this.loginExecutor;
+        this.loginExecutor = executor;
+        if (previous != null && previous != executor) {
+            previous.close();
+        }
+    }
+
+    /**
+     * @return the pool verifyUserAsync runs on, holding the login queue and timing metrics
+     */
+    public LoginExecutor getLoginExecutor() {
+        LoginExecutor executor = this.loginExecutor;
+        if (executor == null) {
+            synchronized (this) {
+                if (this.loginExecutor == null) {
+                    this.loginExecutor = new LoginExecutor();
+                }
+                executor = this.loginExecutor;
+            }
+        }
+        return executor;
+    }
+
     /**
      * Verifies the username and password of a system User
      * @param username of the User to be verified
@@ -136,36 +671,107 @@ public class PasswordSystem {
      * @return the User if the username and password match that of a system User
      */
     public User verifyUser(String username, String password, SecretKey secretKey, byte[] iv) {
-        User retrieved = null;
-        for (User user : users) {
-            if (user.getUsername().equals(username)) {
-                String userPassword = user.getPassword();
-                try {
-                    Cipher cipher = Cipher.getInstance(ALGORITHM);
-                    GCMParameterSpec gcmParameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH, iv);
-                    try {
-                        cipher.init(Cipher.DECRYPT_MODE, secretKey, gcmParameterSpec);
-                        try {
-                            byte[] decryptedBytes = cipher.doFinal(Base64.getDecoder().decode(userPassword));
-                            String decryptedUserPassword = new String(decryptedBytes);
-                            if (decryptedUserPassword.equals(password)) {
-                                retrieved = user;
-                            }
-                        } catch (IllegalBlockSizeException | BadPaddingException e) {
-                            throw new RuntimeException(e);
-                        }
-
-                    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
-                        throw new RuntimeException(e);
-                    }
+        char[] passwordChars = password.toCharArray();
+        try {
+            return verifyUser(username, passwordChars, secretKey, iv);
+        } finally {
+            Credentials.wipe(passwordChars);
+        }
+    }
+
+    /**
+     * Verifies the username and password of a system User, with the password held in a char array
+     * The stored password is decrypted into a per-thread buffer and compared in constant time,
+     * and every plaintext copy is zeroed before returning
+     * @param username of the User to be verified
+     * @param password of the User to be verified, left for the caller to wipe
+     * @param secretKey the SecretKey value to be used for decryption
+     * @param iv initialization vector for GCMParametersSpec, required for the decryption Cipher
+     * @return the User if the username and password match that of a system User
+     */
+    public User verifyUser(String username, char[] password, SecretKey secretKey, byte[] iv) {
+        User user = getUser(username);
+        if (user == null) {
+            return null;
+        }
+        byte[] passwordBytes = Credentials.encode(password);
+        try {
+            if (CryptoEngine.decryptMatches(Base64.getDecoder().decode(user.getPassword()), secretKey, iv, passwordBytes)) {
+                return user;
+            }
+            return null;
+        } finally {
+            Credentials.wipe(passwordBytes);
+        }
+    }
 
-                } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
-                    throw new RuntimeException(e);
+    /**
+     * Puts a user in the user set and username index, replacing any previous holder of the username
+     * Callers must hold the lock stripe for the username
+     * @param user to be indexed
+     */
+    private void indexUser(User user) {
+        User previous = usersByName.put(user.getUsername(), user);
+        if (previous != null && previous != user) {
+            users.remove(previous);
+            previous.attach(null, MembershipIndex.DETACHED);
+        }
+        users.add(user);
+        user.attach(journal, memberships);
+        if (store != null) {
+            store.putUser(user);
+        }
+    }
+
+    /**
+     * Reads a user from the VaultStore on its first lookup
+     * @param username of the user to be read
+     * @return the User, or null if the store does not have one under the username
+     */
+    private User loadUser(String username) {
+        synchronized (lockFor(username)) {
+            User user = usersByName.get(username);
+            if (user != null) {
+                return user;
+            }
+            user = store.loadUser(username, this::userById);
+            if (user != null) {
+                user.attach(journal, memberships);
+                usersByName.put(username, user);
+                users.add(user);
+                if (store.isAdmin(username)) {
+                    administrators.add(user);
                 }
             }
+            return user;
+        }
+    }
+
+    private String dummyHash(PasswordHasher current) {
+        String dummy = this.dummyHash;
+        if (dummy == null) {
+            dummy = current.hash(new char[0]);
+            this.dummyHash = dummy;
         }
-        return retrieved;
+        return dummy;
     }
 
+    private static IntStream batch(int size) {
+        IntStream positions = IntStream.range(0, size);
+        return size < PARALLEL_BATCH_THRESHOLD ? positions : positions.parallel();
+    }
+
+    private static void checkIvs(List<String> records, List<byte[]> ivs) {
+        if (records.size() != ivs.size()) {
+            throw new IllegalArgumentException("Every password needs its own IV");
+        }
+    }
 
+    private int stripe(String username) {
+        return (username.hashCode() & 0x7fffffff) % LOCK_STRIPES;
+    }
+
+    private Object lockFor(String username) {
+        return locks[stripe(username)];
+    }
 }
@@ -1,9 +1,22 @@
 package PasswordManager;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.function.Predicate;
 
 /**
@@ -30,15 +43,34 @@ public class PasswordVerifier {
 		//System.out.println();
 	}
 	
-	private Set<Predicate<String>> criteria;  // never null, never contains null
+	private volatile Criterion[] criteria;  // never null, never contains null, replaced rather than mutated, cheapest first
+	private volatile Map<ByteBuffer, Boolean> verdicts; // keyed MAC of recent passwords to their criteria verdict, null if not cached
+	private final SecretKeySpec verdictKey = newVerdictKey(); // random per verifier so cached keys can't be matched offline
 	private int minChars; //never less then 0 or more then maxchars
 	private int maxChars; //never less then minchars
-	private Set<Character> allowedChars; // never null, contains no nulls
+	private int historyDepth; //never less then 0, number of old passwords an Account remembers
+	private CharacterSet allowedChars; // never null, replaced rather than mutated so it can be shared
+	private volatile StrengthEstimator strengthEstimator = StrengthEstimator.DEFAULT; // never null
+	private volatile BreachedPasswordFilter breachedPasswords; // null unless breached passwords are screened out
 	
 	private boolean needCaps; //false if there are no upper case characters in the allowed characters set
 	private boolean needNums; //false if there are number characters in the allowed characters set
 	private boolean needSpecial; //false if there are no special characters in the allowed characters set
 	private boolean needLowercase; //false if there are no lower case characters in the allowed characters set
+	private volatile PolicySnapshot snapshot; // cached generation policy, null until needed and after any change
+	
+	private static final int DEFAULT_HISTORY_DEPTH = 24;
+	private static final double DEFAULT_CRITERIA_COST = 1000; // nanoseconds
+	private static final int REORDER_INTERVAL = 1024; // criteria are reordered about once per this many verifications
+	private static final String VERDICT_MAC = "HmacSHA256";
+	private static final SecureRandom VERDICT_KEYS = new SecureRandom();
+	private static final ThreadLocal<Mac> MACS = ThreadLocal.withInitial(() -> {
+		try {
+			return Mac.getInstance(VERDICT_MAC);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	});
 	
 	private static char[] specialChars = {
 			'{','}','[',']','`','~','!','@','#','$','%','^','&','*','(',')','_','-','|','\\','\'','\"','<','>',',','.','/','?','=','+'};
@@ -46,6 +78,20 @@ public class PasswordVerifier {
 	private static char[] upperCaseChars = {'A','B','C','D','E','F','G','H','I','J','K','L','M','N','O','P','Q','R','S','T','U','V','W','X','Y','Z'};
 	private static char[] numChars = {'1','2','3','4','5','6','7','8','9','0'};
 	
+	// character class bits, combined into a mask of the classes a password contains or needs
+	private static final int LOWER = 1;
+	private static final int UPPER = 2;
+	private static final int NUM = 4;
+	private static final int SPECIAL = 8;
+	private static final byte[] CHAR_CLASSES = new byte[128]; // class bit of each ASCII character, 0 if none
+	
+	static {
+		markClass(lowerCaseChars, LOWER);
+		markClass(upperCaseChars, UPPER);
+		markClass(numChars, NUM);
+		markClass(specialChars, SPECIAL);
+	}
+	
 	/**
 	 * Creates a PasswordVerifier object
 	 * All characters start as allowed, and and requirements start as false
@@ -53,10 +99,11 @@ public class PasswordVerifier {
 	 * This should be changed as soon as possible. 
 	 */
 	public PasswordVerifier() {
-		criteria = new HashSet<Predicate<String>>();
+		criteria = new Criterion[0];
 		minChars=1;
 		maxChars=50;
-		this.allowedChars = new HashSet<Character>();
+		historyDepth=DEFAULT_HISTORY_DEPTH;
+		this.allowedChars = CharacterSet.empty();
 		addAllowedCharacters(lowerCaseChars);
 		addAllowedCharacters(upperCaseChars);
 		addAllowedCharacters(specialChars);
@@ -72,9 +119,8 @@ public class PasswordVerifier {
 	 * @param chars the chars being added
 	 */
 	public void addAllowedCharacters(char[] chars) {
-		for (char c : chars) {
-			this.allowedChars.add(c);
-		}
+		this.allowedChars = this.allowedChars.with(chars);
+		this.snapshot = null;
 	}
 	
 	/**
@@ -82,9 +128,28 @@ public class PasswordVerifier {
 	 * @param chars the chars being removed
 	 */
 	public void removeAllowedCharacters(char[] chars) {
-		for (char c : chars) {
-			this.allowedChars.remove(c);
-		}
+		this.allowedChars = this.allowedChars.without(chars);
+		this.snapshot = null;
+	}
+	
+	/**
+	 * This is for adding a range of Unicode code points to the allowed character set
+	 * @param first the first code point being added
+	 * @param last the last code point being added, inclusive
+	 */
+	public void addAllowedRange(int first, int last) {
+		this.allowedChars = this.allowedChars.withRange(first, last);
+		this.snapshot = null;
+	}
+	
+	/**
+	 * This is for removing a range of Unicode code points from the allowed character set
+	 * @param first the first code point being removed
+	 * @param last the last code point being removed, inclusive
+	 */
+	public void removeAllowedRange(int first, int last) {
+		this.allowedChars = this.allowedChars.withoutRange(first, last);
+		this.snapshot = null;
 	}
 	
 	/**
@@ -96,63 +161,78 @@ public class PasswordVerifier {
 	public boolean verifyPassword(String password) {
 		if (password == null) return false;
 		int len = password.length();
-		boolean hasNeededChars = true;
 		if (minChars > len||maxChars < len){
-			System.out.println(minChars + " " + maxChars + " " + len);
-			System.out.println("pw issue");
 			return false;
 		}
-		if (needLowercase) {
-			hasNeededChars = false;
-			for (char c : lowerCaseChars) {
-				if (password.contains(c+"")) {
-					hasNeededChars = true;
-					break;
-				}
+		int required = requiredClasses();
+		int seen = 0;
+		CharacterSet allowed = this.allowedChars;
+		for (int i = 0; i < len; ) {
+			int c = password.codePointAt(i);
+			if (!allowed.contains(c)) {
+				return false;
 			}
-			if (!hasNeededChars) return false;
-		}
-		if (needCaps) {
-			hasNeededChars = false;
-			for (char c : upperCaseChars) {
-				hasNeededChars = false;
-				if (password.contains(c+"")) {
-					hasNeededChars = true;
-					break;
-				}
+			if (c < CHAR_CLASSES.length) {
+				seen |= CHAR_CLASSES[c];
 			}
-			if (!hasNeededChars) return false;
+			i += Character.charCount(c);
 		}
-		if (needNums) {
-			hasNeededChars = false;
-			for (char c : numChars) {
-				if (password.contains(c+"")) {
-					hasNeededChars = true;
-					break;
-				}
+		if ((seen & required) != required) return false;
+		BreachedPasswordFilter breached = this.breachedPasswords;
+		if (breached != null && breached.mightContain(password)) return false;
+		return passesCriteria(password);
+	}
+	
+	/**
+	 * Runs the extra criteria cheapest first, consulting the verdict cache if there is one
+	 */
+	private boolean passesCriteria(String password) {
+		Criterion[] current = this.criteria;
+		if (current.length == 0) return true;
+		Map<ByteBuffer, Boolean> cache = this.verdicts;
+		ByteBuffer key = null;
+		if (cache != null) {
+			key = verdictKey(password);
+			synchronized (cache) {
+				Boolean verdict = cache.get(key);
+				if (verdict != null) return verdict;
 			}
-			if (!hasNeededChars) return false;
 		}
-		if (needSpecial) {
-			hasNeededChars = false;
-			for (char c : specialChars) {
-				if (password.contains(c+"")) {
-					//System.out.println("This is special: " + c);
-					hasNeededChars = true;
-					break;
-				}
+		boolean verdict = true;
+		for (Criterion c : current) {
+			if (!c.test(password)) {
+				verdict = false;
+				break;
 			}
-			if (!hasNeededChars) return false;
 		}
-		for (char c : password.toCharArray()) {
-			if (!allowedChars.contains(c)) {
-				return false;
+		if (current.length > 1 && ThreadLocalRandom.current().nextInt(REORDER_INTERVAL) == 0) {
+			reorderCriteria();
+		}
+		if (cache != null) {
+			synchronized (cache) {
+				if (current == this.criteria) cache.put(key, verdict);
 			}
 		}
-		for (Predicate<String> p: this.criteria) {
-			if (!p.test(password)) return false;
+		return verdict;
+	}
+	
+	/**
+	 * Sorts the criteria by their measured cost per rejection
+	 */
+	private synchronized void reorderCriteria() {
+		Criterion[] sorted = this.criteria.clone();
+		double[] ranks = new double[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			ranks[i] = sorted[i].rank();
+		}
+		Integer[] order = new Integer[sorted.length];
+		for (int i = 0; i < order.length; i++) order[i] = i;
+		Arrays.sort(order, Comparator.comparingDouble(i -> ranks[i]));
+		Criterion[] reordered = new Criterion[sorted.length];
+		for (int i = 0; i < order.length; i++) {
+			reordered[i] = sorted[order[i]];
 		}
-		return true;
+		this.criteria = reordered;
 	}
 	
 	/**
@@ -172,10 +252,45 @@ public class PasswordVerifier {
 		return verifyPassword(password);
 	}
 	
+	/**
+	 * Uses the criteria defined by the object
+	 * Additionally prevents the password from being one remembered by the history
+	 * @param password the password being verified
+	 * @param history the account's password history
+	 * @return true if valid, otherwise false
+	 */
+	public boolean verifyNewPassword(String password, PasswordHistory history) {
+		if (password == null) return false;
+		if (history.contains(password)) return false;
+		return verifyPassword(password);
+	}
+	
+	/**
+	 * Estimates how hard the password is to guess under this policy
+	 * Looks for dictionary words, sequences, repeats and keyboard walks, and prices the rest by the
+	 * size of the allowed character classes the password uses
+	 * @param password the password being estimated
+	 * @return the estimated entropy and a score from 0 to 4, score 0 for null
+	 */
+	public PasswordStrength estimateStrength(String password) {
+		if (password == null) return new PasswordStrength(0);
+		return strengthEstimator.estimate(password, policySnapshot());
+	}
+	
+	/**
+	 * Sets extra words that estimateStrength treats as easily guessed, on top of the common words it knows
+	 * Replaces any extra words set before
+	 * @param words the words, most common first
+	 */
+	public void strengthDictionary(Collection<String> words) {
+		this.strengthEstimator = StrengthEstimator.withWords(words);
+	}
+	
 	/**
 	 * Generates a password based on the password verifier.
-	 * If it can not generate a valid password it will return NULL
-	 * @return the generated password, or null if it fails
+	 * Extra criteria are not considered
+	 * @return the generated password, never null
+	 * @throws IllegalArgumentException if the requirements cannot be met with the allowed characters
 	 */
 	public String generatePassword() {
 		return PasswordGenerator.generatePassword(this);
@@ -187,18 +302,93 @@ public class PasswordVerifier {
 	 * @param criteria the rule being added
 	 */
 	public void addCriteria(Predicate<String> criteria) {
+		addCriteria(criteria, DEFAULT_CRITERIA_COST);
+	}
+	
+	/**
+	 * Adds a criteria that has no direct implementation, with a hint of how long it takes to run
+	 * Cheaper criteria run first, and the order adapts to measured times and rejection rates
+	 * Does not work with generate password
+	 * @param criteria the rule being added, replacing its cost hint if it was already added
+	 * @param cost the expected nanoseconds per call
+	 */
+	public synchronized void addCriteria(Predicate<String> criteria, double cost) {
 		if (criteria == null) {
 			return;
 		}
-		this.criteria.add(criteria);
+		if (!(cost >= 0)) {
+			throw new IllegalArgumentException("cost must not be negative");
+		}
+		List<Criterion> updated = new ArrayList<Criterion>(this.criteria.length + 1);
+		for (Criterion c : this.criteria) {
+			if (!c.predicate.equals(criteria)) updated.add(c);
+		}
+		updated.add(new Criterion(criteria, cost));
+		this.criteria = updated.toArray(new Criterion[0]);
+		clearVerdicts();
+		reorderCriteria();
 	}
 	
 	/**
 	 * Removes a criteria that was added through addCriteria
 	 * @param criteria the rule being removed
 	 */
-	public void removeCriteria(Predicate<String> criteria) {
-		this.criteria.remove(criteria);
+	public synchronized void removeCriteria(Predicate<String> criteria) {
+		List<Criterion> updated = new ArrayList<Criterion>(this.criteria.length);
+		for (Criterion c : this.criteria) {
+			if (!c.predicate.equals(criteria)) updated.add(c);
+		}
+		this.criteria = updated.toArray(new Criterion[0]);
+		clearVerdicts();
+	}
+	
+	private ByteBuffer verdictKey(String password) {
+		byte[] bytes = password.getBytes(StandardCharsets.UTF_8);
+		try {
+			Mac mac = MACS.get();
+			mac.init(verdictKey);
+			return ByteBuffer.wrap(mac.doFinal(bytes));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		} finally {
+			Credentials.wipe(bytes);
+		}
+	}
+	
+	private static SecretKeySpec newVerdictKey() {
+		byte[] key = new byte[32];
+		VERDICT_KEYS.nextBytes(key);
+		return new SecretKeySpec(key, VERDICT_MAC);
+	}
+	
+	private void clearVerdicts() {
+		Map<ByteBuffer, Boolean> cache = this.verdicts;
+		if (cache != null) {
+			synchronized (cache) {
+				cache.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Remembers the extra criteria verdict of recently verified passwords, keyed by an HMAC under a random per-verifier key
+	 * Only worth it when criteria are expensive and the same candidates are verified again
+	 * @param size the number of verdicts remembered, 0 to stop remembering
+	 */
+	public synchronized void cacheCriteriaVerdicts(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("size must not be negative");
+		}
+		if (size == 0) {
+			verdicts = null;
+			return;
+		}
+		verdicts = new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+				return size() > size;
+			}
+		};
 	}
 	
 	/**
@@ -207,6 +397,7 @@ public class PasswordVerifier {
 	 */
 	public void minLength(int min) {
 		this.minChars = min;
+		this.snapshot = null;
 		repOK();
 	}
 	
@@ -216,6 +407,24 @@ public class PasswordVerifier {
 	 */
 	public void maxLength(int max) {
 		this.maxChars = max;
+		this.snapshot = null;
+		repOK();
+	}
+	
+	/**
+	 * Rejects passwords found in a breached password corpus, checked before any extra criteria
+	 * @param filter the filter built from the corpus, null to stop screening
+	 */
+	public void screenBreachedPasswords(BreachedPasswordFilter filter) {
+		this.breachedPasswords = filter;
+	}
+	
+	/**
+	 * Sets how many old passwords new Accounts remember and refuse to reuse
+	 * @param depth the number of old passwords, 0 to keep none
+	 */
+	public void historyDepth(int depth) {
+		this.historyDepth = depth;
 		repOK();
 	}
 	
@@ -225,6 +434,7 @@ public class PasswordVerifier {
 	 */
 	public void needUpperCase(boolean need) {
 		this.needCaps=need;
+		this.snapshot = null;
 	}
 	
 	/**
@@ -234,6 +444,7 @@ public class PasswordVerifier {
 	public void noUpperCase() {
 		removeAllowedCharacters(upperCaseChars);
 		this.needCaps=false;
+		this.snapshot = null;
 	}
 	
 	/**
@@ -249,6 +460,7 @@ public class PasswordVerifier {
 	 */
 	public void needLowerCase(boolean need) {
 		this.needLowercase=need;
+		this.snapshot = null;
 	}
 	
 	/**
@@ -258,6 +470,7 @@ public class PasswordVerifier {
 	public void noLowerCase() {
 		removeAllowedCharacters(lowerCaseChars);
 		this.needLowercase=false;
+		this.snapshot = null;
 	}
 	
 	/**
@@ -273,6 +486,7 @@ public class PasswordVerifier {
 	 */
 	public void needNums(boolean need) {
 		this.needNums=need;
+		this.snapshot = null;
 	}
 	
 	/**
@@ -282,6 +496,7 @@ public class PasswordVerifier {
 	public void noNums() {
 		removeAllowedCharacters(numChars);
 		this.needNums=false;
+		this.snapshot = null;
 	}
 	
 	/**
@@ -298,6 +513,7 @@ public class PasswordVerifier {
 	 */
 	public void needSpecial(boolean need) {
 		this.needSpecial=need;
+		this.snapshot = null;
 	}
 	
 	/**
@@ -308,6 +524,7 @@ public class PasswordVerifier {
 	public void noSpecial() {
 		removeAllowedCharacters(specialChars);
 		this.needSpecial=false;
+		this.snapshot = null;
 	}
 	
 	/**
@@ -333,17 +550,52 @@ public class PasswordVerifier {
 	}
 	
 	/**
+	 * @return the breached password filter passwords are screened against, null if none
+	 */
+	public BreachedPasswordFilter breachedPasswordFilter() {
+		return this.breachedPasswords;
+	}
+	
+	/**
+	 * @return the number of old passwords new Accounts remember
+	 */
+	public int historyDepth() {
+		return this.historyDepth;
+	}
+	
+	/**
+	 * Copies the allowed characters into a new set, prefer allowedCharacterSet
 	 * @return set of allowed characters in the password
 	 */
 	public Set<Character> allowedCharacters() {
-		return new HashSet<Character>(this.allowedChars);
+		return this.allowedChars.toSet();
+	}
+	
+	/**
+	 * The returned set is immutable, so it can be shared without copying
+	 * It does not change if the allowed characters are changed later
+	 * @return the allowed characters in the password
+	 */
+	public CharacterSet allowedCharacterSet() {
+		return this.allowedChars;
 	}
 	
 	/**
 	 * @return set of extra criteria
 	 */
 	public Set<Predicate<String>> extraCriteria() {
-		return new HashSet<>(this.criteria);
+		return new HashSet<>(criteriaOrder());
+	}
+	
+	/**
+	 * @return the extra criteria in the order they are currently run
+	 */
+	public List<Predicate<String>> criteriaOrder() {
+		List<Predicate<String>> order = new ArrayList<Predicate<String>>();
+		for (Criterion c : this.criteria) {
+			order.add(c.predicate);
+		}
+		return order;
 	}
 	
 	/**
@@ -374,17 +626,48 @@ public class PasswordVerifier {
 		return this.needSpecial;
 	}
 	
+	/**
+	 * The snapshot is cached until the policy is next changed,
+	 * so repeated generation against the same policy does no set work
+	 * @return the current generation policy, with the allowed characters split into pools by class
+	 */
+	PolicySnapshot policySnapshot() {
+		PolicySnapshot current = this.snapshot;
+		if (current == null) {
+			current = new PolicySnapshot(minChars, maxChars, needLowercase, needCaps, needNums, needSpecial,
+					allowedChars, lowerCaseChars, upperCaseChars, numChars, specialChars);
+			this.snapshot = current;
+		}
+		return current;
+	}
+	
+	/**
+	 * @return the class bits a password must contain under the current requirements
+	 */
+	private int requiredClasses() {
+		int required = 0;
+		if (needLowercase) required |= LOWER;
+		if (needCaps) required |= UPPER;
+		if (needNums) required |= NUM;
+		if (needSpecial) required |= SPECIAL;
+		return required;
+	}
+	
+	private static void markClass(char[] chars, int classBit) {
+		for (char c : chars) {
+			CHAR_CLASSES[c] |= classBit;
+		}
+	}
+	
 	private void repOK() {
 		assert(this.allowedChars != null);
-		for (Character c : this.allowedChars) {
-			assert(c != null);
-		}
 		assert(this.criteria != null);
-		for (Predicate<String> p : this.criteria) {
-			assert(p != null);
+		for (Criterion c : this.criteria) {
+			assert(c != null);
 		}
 		assert(this.minChars >= 0);
 		assert(this.maxChars >= minChars);
+		assert(this.historyDepth >= 0);
 	}
 	
 }
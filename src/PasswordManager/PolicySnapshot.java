@@ -0,0 +1,49 @@
+package PasswordManager;
+
+import java.util.Arrays;
+
+/**
+ * A read-only snapshot of a PasswordVerifier's generation policy
+ * The character pools are the verifier's allowed characters split by class, worked out once
+ * and cached on the verifier until one of its mutators is called
+ */
+final class PolicySnapshot {
+    final int minChars;
+    final int maxChars;
+    final boolean needLowercase;
+    final boolean needCaps;
+    final boolean needNums;
+    final boolean needSpecial;
+    final char[] allowed; // every allowed single-char character
+    final char[] lower;   // allowed lower case characters
+    final char[] upper;   // allowed upper case characters
+    final char[] nums;    // allowed number characters
+    final char[] special; // allowed special characters
+
+    PolicySnapshot(int minChars, int maxChars, boolean needLowercase, boolean needCaps, boolean needNums,
+                   boolean needSpecial, CharacterSet allowedChars, char[] lowerCaseChars, char[] upperCaseChars,
+                   char[] numChars, char[] specialChars) {
+        this.minChars = minChars;
+        this.maxChars = maxChars;
+        this.needLowercase = needLowercase;
+        this.needCaps = needCaps;
+        this.needNums = needNums;
+        this.needSpecial = needSpecial;
+        this.allowed = allowedChars.toChars();
+        this.lower = pool(allowedChars, lowerCaseChars);
+        this.upper = pool(allowedChars, upperCaseChars);
+        this.nums = pool(allowedChars, numChars);
+        this.special = pool(allowedChars, specialChars);
+    }
+
+    private static char[] pool(CharacterSet allowedChars, char[] classChars) {
+        char[] pool = new char[classChars.length];
+        int size = 0;
+        for (char c : classChars) {
+            if (allowedChars.contains(c)) {
+                pool[size++] = c;
+            }
+        }
+        return size == pool.length ? pool : Arrays.copyOf(pool, size);
+    }
+}
@@ -0,0 +1,313 @@
+package PasswordManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.LongFunction;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+
+/**
+ * Record framing and field encoding shared by the PasswordManager's binary on-disk formats
+ * A record is an int payload length, an int CRC32 of the type and payload, a type byte and the payload.
+ * Strings are written as an int byte length followed by UTF-8 bytes, with a length of -1 for null
+ */
+final class RecordCodec {
+    static final int RECORD_HEADER_SIZE = 9;
+
+    private static final byte PLAIN_ACCOUNT = 0;
+    private static final byte SHARED_ACCOUNT = 1;
+
+    /** Writes the payload of a record */
+    @FunctionalInterface
+    interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private RecordCodec() {
+    }
+
+    /**
+     * @param out the output to write to
+     * @param value the string to be written, may be null
+     * @throws IOException if the output cannot be written
+     */
+    static void writeString(DataOutput out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @param in the buffer to read from, advanced past the string
+     * @return the string read, may be null
+     */
+    static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param out the output to write to
+     * @param values the strings to be written as a count followed by each string
+     * @throws IOException if the output cannot be written
+     */
+    static void writeStrings(DataOutput out, Collection<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    /**
+     * @param in the buffer to read from, advanced past the strings
+     * @return the strings read, in the order they were written
+     */
+    static List<String> readStrings(ByteBuffer in) {
+        int count = in.getInt();
+        List<String> values = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            values.add(readString(in));
+        }
+        return values;
+    }
+
+    /**
+     * Frames a record and appends it to a buffer of records
+     * @param records the buffer the framed record is appended to
+     * @param type the record type
+     * @param writer writes the record payload
+     * @throws IOException if the payload cannot be written
+     */
+    static void writeRecord(ByteArrayOutputStream records, byte type, PayloadWriter writer) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        writer.write(new DataOutputStream(payload));
+        byte[] bytes = payload.toByteArray();
+        DataOutputStream out = new DataOutputStream(records);
+        out.writeInt(bytes.length);
+        out.writeInt(checksum(type, ByteBuffer.wrap(bytes)));
+        out.writeByte(type);
+        out.write(bytes);
+    }
+
+    /**
+     * @param type the record type
+     * @param payload the record payload, not advanced
+     * @return the checksum stored in the record header
+     */
+    static int checksum(byte type, ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes all of a buffer to a channel at a position
+     * @param out the channel to write to
+     * @param bytes the bytes to be written
+     * @param position the position in the channel to write at
+     * @throws IOException if the channel cannot be written
+     */
+    static void writeFully(FileChannel out, ByteBuffer bytes, long position) throws IOException {
+        while (bytes.hasRemaining()) {
+            position += out.write(bytes, position);
+        }
+    }
+
+    /**
+     * Writes an Account or SharedAccount, with members of a SharedAccount written by User id, so they
+     * survive renames. The password, date, version and history come from one snapshot of the account
+     * @param out the output to write to
+     * @param account the account to be written
+     * @throws IOException if the output cannot be written
+     */
+    static void writeAccount(DataOutput out, Account account) throws IOException {
+        out.writeByte(account instanceof SharedAccount ? SHARED_ACCOUNT : PLAIN_ACCOUNT);
+        Account.Snapshot snapshot = account.snapshot();
+        writeString(out, account.getUsername());
+        writeString(out, snapshot.password);
+        out.writeLong(snapshot.dateCreated.getTime());
+        out.writeLong(snapshot.version);
+        writeHistory(out, snapshot.oldPasswords);
+        if (account instanceof SharedAccount) {
+            SharedAccount shared = (SharedAccount) account;
+            out.writeLong(shared.getId());
+            writeIds(out, shared.getAdmins());
+            writeIds(out, shared.getUsers());
+        }
+    }
+
+    /**
+     * Reads an Account or SharedAccount written by writeAccount
+     * @param in the buffer to read from, advanced past the account
+     * @param verifier the password policy given to the account
+     * @param members looks up the members of a SharedAccount by User id, returning null for unknown users
+     * @return the account read
+     */
+    static Account readAccount(ByteBuffer in, PasswordVerifier verifier, LongFunction<User> members) {
+        byte kind = in.get();
+        String username = readString(in);
+        String password = readString(in);
+        Date dateCreated = new Date(in.getLong());
+        long version = in.getLong();
+        PasswordHistory oldPasswords = readHistory(in);
+        if (kind != SHARED_ACCOUNT) {
+            return new Account(username, password, verifier, dateCreated, oldPasswords, version);
+        }
+        long id = in.getLong();
+        Set<User> admins = resolve(in, members);
+        Set<User> users = resolve(in, members);
+        return new SharedAccount(username, password, verifier, dateCreated, oldPasswords, version, id, admins, users);
+    }
+
+    /**
+     * Reads the member ids of an account written by writeAccount, skipping every other field
+     * @param account the account, from its position to its limit, not advanced
+     * @return the ids of the account's admins and users, or null if it is not a SharedAccount
+     */
+    static long[] memberIds(ByteBuffer account) {
+        ByteBuffer in = account.slice();
+        if (in.get() != SHARED_ACCOUNT) {
+            return null;
+        }
+        skipString(in); // username
+        skipString(in); // password
+        in.getLong();   // date created
+        in.getLong();   // version
+        in.getInt();    // history capacity
+        int keyLength = in.getInt();
+        in.position(in.position() + keyLength);
+        int entries = in.getInt();
+        in.position(in.position() + entries * 2 * Long.BYTES);
+        in.getLong();   // account id
+        int admins = in.getInt();
+        int users = in.getInt(in.position() + admins * Long.BYTES);
+        long[] ids = new long[admins + users];
+        for (int i = 0; i < ids.length; i++) {
+            if (i == admins) {
+                in.getInt(); // user count
+            }
+            ids[i] = in.getLong();
+        }
+        return ids;
+    }
+
+    /**
+     * Rewrites the password of an account written by writeAccount, copying every other byte as it is,
+     * so the account is changed without being decoded
+     * @param account the account, from its position to its limit, not advanced
+     * @param rewrite maps the password to its replacement, or to null to leave it
+     * @return the rewritten account, or null if the password was left
+     * @throws IOException if the account cannot be written
+     */
+    static byte[] rewritePassword(ByteBuffer account, UnaryOperator<String> rewrite) throws IOException {
+        ByteBuffer in = account.slice();
+        in.get(); // kind
+        readString(in); // username
+        int passwordStart = in.position();
+        String password = readString(in);
+        String replacement = password == null ? null : rewrite.apply(password);
+        if (replacement == null) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(in.limit() + replacement.length());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.write(toArray(in, 0, passwordStart));
+        writeString(out, replacement);
+        out.write(toArray(in, in.position(), in.limit()));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a password history as its capacity, fingerprint key and (time, fingerprint) entries, oldest first
+     * @param out the output to write to
+     * @param history the history to be written
+     * @throws IOException if the output cannot be written
+     */
+    static void writeHistory(DataOutput out, PasswordHistory history) throws IOException {
+        byte[] key = history.key();
+        long[] dates = history.dateMillis();
+        long[] fingerprints = history.fingerprints();
+        out.writeInt(history.capacity());
+        out.writeInt(key.length);
+        out.write(key);
+        out.writeInt(dates.length);
+        for (int i = 0; i < dates.length; i++) {
+            out.writeLong(dates[i]);
+            out.writeLong(fingerprints[i]);
+        }
+    }
+
+    /**
+     * Reads a password history written by writeHistory
+     * @param in the buffer to read from, advanced past the history
+     * @return the history read
+     */
+    static PasswordHistory readHistory(ByteBuffer in) {
+        int capacity = in.getInt();
+        byte[] key = new byte[in.getInt()];
+        in.get(key);
+        int size = in.getInt();
+        long[] dates = new long[size];
+        long[] fingerprints = new long[size];
+        for (int i = 0; i < size; i++) {
+            dates[i] = in.getLong();
+            fingerprints[i] = in.getLong();
+        }
+        return PasswordHistory.restore(capacity, key, dates, fingerprints);
+    }
+
+    private static byte[] toArray(ByteBuffer in, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        ByteBuffer range = in.duplicate();
+        range.position(from).limit(to);
+        range.get(bytes);
+        return bytes;
+    }
+
+    private static void skipString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length > 0) {
+            in.position(in.position() + length);
+        }
+    }
+
+    private static void writeIds(DataOutput out, Set<User> users) throws IOException {
+        out.writeInt(users.size());
+        for (User user : users) {
+            out.writeLong(user.getId());
+        }
+    }
+
+    private static Set<User> resolve(ByteBuffer in, LongFunction<User> members) {
+        int count = in.getInt();
+        Set<User> users = new HashSet<User>();
+        for (int i = 0; i < count; i++) {
+            User user = members.apply(in.getLong());
+            if (user != null) {
+                users.add(user);
+            }
+        }
+        return users;
+    }
+}
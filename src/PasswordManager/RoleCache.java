@@ -0,0 +1,85 @@
+package PasswordManager;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Per-account cache of the UserType each user was last resolved to
+ * Entries are stamped with the account's membership generation, which invalidate bumps after every
+ * role change, so a stale entry is never returned and nothing has to be removed one by one. Once the
+ * cache holds its limit of users, the user cached longest ago is evicted for each new one
+ */
+final class RoleCache {
+    private static final int DEFAULT_LIMIT = 4096;
+
+    private final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<Long, Entry>();
+    private final ConcurrentLinkedQueue<Long> order = new ConcurrentLinkedQueue<Long>(); // cached ids, oldest first
+    private final AtomicLong generation = new AtomicLong();
+    private final int limit;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /** A resolved role and the generation it was resolved in */
+    private static final class Entry {
+        final SharedAccount.UserType type;
+        final long generation;
+
+        Entry(SharedAccount.UserType type, long generation) {
+            this.type = type;
+            this.generation = generation;
+        }
+    }
+
+    RoleCache() {
+        this(DEFAULT_LIMIT);
+    }
+
+    RoleCache(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @param user the user, not null
+     * @param resolve works out the user's role on a miss
+     * @return the user's role
+     */
+    SharedAccount.UserType get(User user, Function<User, SharedAccount.UserType> resolve) {
+        long current = generation.get(); // read before resolving, so a change made meanwhile makes the entry stale
+        Entry entry = entries.get(user.getId());
+        if (entry != null && entry.generation == current) {
+            hits.increment();
+            return entry.type;
+        }
+        misses.increment();
+        SharedAccount.UserType type = resolve.apply(user);
+        if (entries.put(user.getId(), new Entry(type, current)) == null) {
+            order.add(user.getId());
+            while (entries.size() > limit) {
+                Long oldest = order.poll();
+                if (oldest == null) {
+                    break;
+                }
+                entries.remove(oldest);
+            }
+        }
+        return type;
+    }
+
+    /**
+     * Makes every cached role stale; called after the account's membership changes
+     */
+    void invalidate() {
+        generation.incrementAndGet();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+}
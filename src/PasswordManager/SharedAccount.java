@@ -1,5 +1,8 @@
 package PasswordManager;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Shared account with multiple users and permission levels
@@ -7,17 +10,23 @@ import java.util.Set;
  */
 public class SharedAccount extends Account {
     /** Enumeration of possible user types */
-    private enum UserType {
+    public enum UserType {
         ADMIN, 				/** User with administrative privileges */
         USER, 				/** Regular user with standard privileges */
         NONE				/** Unrecognized user (no access) */
     }
     
-    private Set<User> admins;
-    private Set<User> users;
+    private final long id; // stable across restarts
+    private volatile MembershipIndex index; // the index of the system the account belongs to, changed under members
+    private final ConcurrentHashMap<Long, MembershipIndex.Member> members =
+            new ConcurrentHashMap<Long, MembershipIndex.Member>(); // keyed by User id, locked to change it
+    private final RoleCache roleCache = new RoleCache(); // verifyUser results, invalidated by membership changes
+    private volatile ChangeFeed changes; // created on first use
     
     /**
      * Constructs new SharedAccount with specified credentials and user sets
+     * The sets are copied, so later changes to them do not change the account's members. The account is
+     * indexed under its members once it is added to a User of a PasswordSystem
      *
      * @param username, account username (inherited from Account)
      * @param password, account password (inherited from Account)
@@ -27,9 +36,199 @@ public class SharedAccount extends Account {
      */
     public SharedAccount(String username, String password, PasswordVerifier passwordVerifier, 
     		Set<User> admins, Set<User> users) {
+        this(username, password, passwordVerifier, admins, users, MembershipIndex.DETACHED);
+    }
+
+    /**
+     * Constructs new SharedAccount with its memberships kept in a given index
+     *
+     * @param username, account username (inherited from Account)
+     * @param password, account password (inherited from Account)
+     * @param passwordVerifier, password validator (inherited from Account)
+     * @param admins, initial set of administrative users (cannot be null)
+     * @param users, initial set of regular users (cannot be null)
+     * @param index, the index listing the account under its members
+     */
+    public SharedAccount(String username, String password, PasswordVerifier passwordVerifier,
+            Set<User> admins, Set<User> users, MembershipIndex index) {
         super(username, password, passwordVerifier);
-        this.admins = admins;
-        this.users = users;
+        this.id = BufferedRandom.current().nextLong();
+        this.index = index;
+        addMembers(admins, users);
+    }
+
+    /**
+     * Restores a SharedAccount with its saved creation date, password history, version and members
+     *
+     * @param username, account username (inherited from Account)
+     * @param password, account password (inherited from Account)
+     * @param passwordVerifier, password validator (inherited from Account)
+     * @param dateCreated, date the current password was set
+     * @param oldPasswords, history of previous passwords
+     * @param version, the version the account was saved at
+     * @param id, the id the account was created with
+     * @param admins, set of administrative users (cannot be null)
+     * @param users, set of regular users (cannot be null)
+     */
+    SharedAccount(String username, String password, PasswordVerifier passwordVerifier, Date dateCreated,
+            PasswordHistory oldPasswords, long version, long id, Set<User> admins, Set<User> users) {
+        super(username, password, passwordVerifier, dateCreated, oldPasswords, version);
+        this.id = id;
+        this.index = MembershipIndex.DETACHED;
+        addMembers(admins, users);
+    }
+
+    private void addMembers(Set<User> admins, Set<User> users) {
+        for (User admin : admins) {
+            grant(admin, Journal.ROLE_ADMIN);
+        }
+        for (User user : users) {
+            grant(user, Journal.ROLE_USER);
+        }
+    }
+
+    private boolean grant(User member, byte role) {
+        boolean changed = index.grant(this, members, member, role);
+        if (changed) {
+            roleCache.invalidate();
+        }
+        return changed;
+    }
+
+    private boolean revoke(User member, byte role) {
+        boolean changed = index.revoke(this, members, member, role);
+        if (changed) {
+            roleCache.invalidate();
+        }
+        return changed;
+    }
+
+    /**
+     * Gets the stable id of the account
+     * @return the id of the account
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Gets the stream of the account's password changes, which members subscribe to
+     * @return the account's ChangeFeed
+     */
+    public ChangeFeed changes() {
+        ChangeFeed feed = changes;
+        if (feed == null) {
+            synchronized (members) {
+                feed = changes;
+                if (feed == null) {
+                    feed = new ChangeFeed(this);
+                    changes = feed;
+                }
+            }
+        }
+        return feed;
+    }
+
+    @Override
+    void passwordChanged(long newVersion, Date date) {
+        ChangeFeed feed = changes;
+        if (feed != null) {
+            feed.publish(new AccountChange(this, newVersion, date));
+        }
+    }
+
+    /**
+     * Moves the account's memberships into another index, such as that of the system its owner joined
+     *
+     * @param target, the index to list the account in from now on
+     */
+    void attach(MembershipIndex target) {
+        if (index == target) {
+            return;
+        }
+        synchronized (members) {
+            MembershipIndex previous = index;
+            if (previous != target) {
+                index = target;
+                previous.unregister(this, members);
+                target.register(this, members);
+            }
+        }
+    }
+
+    /**
+     * Drops the account from its MembershipIndex, once it is deleted or replaced
+     */
+    void unregister() {
+        attach(MembershipIndex.DETACHED);
+    }
+
+    /**
+     * Adds or removes a member without checking permissions or journaling the change
+     *
+     * @param added, true if the member is added, false if removed
+     * @param role, Journal.ROLE_ADMIN or Journal.ROLE_USER
+     * @param member, the member added or removed
+     */
+    void applyMembership(boolean added, byte role, User member) {
+        synchronized (members) {
+            if (added) {
+                grant(member, role);
+            } else {
+                revoke(member, role);
+            }
+        }
+    }
+
+    /**
+     * Gives or takes away a role, journaling the change only if it takes effect
+     * The check, the journal record and the change are made holding the account's member lock, so
+     * changes to one account reach the journal in the order they are applied
+     *
+     * @param added, true if the role is given, false if taken away
+     * @param member, the member whose role changes
+     * @param role, Journal.ROLE_ADMIN or Journal.ROLE_USER
+     * @return true if the member's roles changed
+     */
+    private boolean changeMembership(boolean added, User member, byte role) {
+        synchronized (members) {
+            if (hasRole(member, role) == added) {
+                return false;
+            }
+            logMembership(added, member, role);
+            return added ? grant(member, role) : revoke(member, role);
+        }
+    }
+
+    private boolean hasRole(User user, byte role) {
+        MembershipIndex.Member member = members.get(user.getId());
+        return member != null && (member.roles & (1 << role)) != 0;
+    }
+
+    /**
+     * Gets the administrative users of the account
+     * @return a copy of the set of administrative users
+     */
+    Set<User> getAdmins() {
+        return membersWith(MembershipIndex.ADMIN_BIT);
+    }
+
+    /**
+     * Gets the regular users of the account
+     * @return a copy of the set of regular users
+     */
+    Set<User> getUsers() {
+        return membersWith(MembershipIndex.USER_BIT);
+    }
+
+    private Set<User> membersWith(byte roleBit) {
+        Set<User> result = new HashSet<User>();
+        for (MembershipIndex.Member member : members.values()) {
+            if ((member.roles & roleBit) != 0) {
+                result.add(member.user);
+            }
+        }
+        return result;
     }
     
     /**
@@ -43,7 +242,7 @@ public class SharedAccount extends Account {
     public Verify addUser(User currentUser, User user) {
         return performAdminOperation(
                 currentUser, 
-                () -> users.add(user)
+                () -> changeMembership(true, user, Journal.ROLE_USER)
         );
     }
     
@@ -58,7 +257,7 @@ public class SharedAccount extends Account {
     public Verify addAdmin(User currentUser, User user) {
         return performAdminOperation(
                 currentUser, 
-                () -> admins.add(user)
+                () -> changeMembership(true, user, Journal.ROLE_ADMIN)
         );
     }
     
@@ -73,7 +272,7 @@ public class SharedAccount extends Account {
     public Verify removeUser(User currentUser, User user) {
         return performAdminOperation(
                 currentUser, 
-                () -> users.remove(user)
+                () -> changeMembership(false, user, Journal.ROLE_USER)
         );
     }
     
@@ -88,7 +287,7 @@ public class SharedAccount extends Account {
     public Verify removeAdmin(User currentUser, User user) {
         return performAdminOperation(
                 currentUser, 
-                () -> admins.remove(user)
+                () -> changeMembership(false, user, Journal.ROLE_ADMIN)
         );
     }
     
@@ -115,15 +314,51 @@ public class SharedAccount extends Account {
     
     /**
      * Verifies user's permission level
+     * Results are cached per account until its membership next changes
      *
      * @param currentUser, user to check
      * @return UserType.ADMIN if user has admin privileges, UserType.USER if user has regular access,
      *         UserType.NONE if user unrecognized
      */
     public UserType verifyUser(User currentUser) {
-        if (admins.contains(currentUser)) {
+        if (currentUser == null) {
+            return UserType.NONE;
+        }
+        return roleCache.get(currentUser, this::resolveRole);
+    }
+
+    /**
+     * Gets the number of verifyUser calls answered from the account's role cache
+     * @return the number of cache hits
+     */
+    public long getRoleCacheHits() {
+        return roleCache.hits();
+    }
+
+    /**
+     * Gets the number of verifyUser calls that had to look the role up
+     * @return the number of cache misses
+     */
+    public long getRoleCacheMisses() {
+        return roleCache.misses();
+    }
+
+    /**
+     * Checks membership without going through the role cache or counting towards its metrics
+     *
+     * @param userId, the id of the user
+     * @return true if the user is an admin or user of the account
+     */
+    boolean hasMember(long userId) {
+        return members.containsKey(userId);
+    }
+
+    private UserType resolveRole(User currentUser) {
+        MembershipIndex.Member member = members.get(currentUser.getId());
+        int roles = member == null ? 0 : member.roles;
+        if ((roles & MembershipIndex.ADMIN_BIT) != 0) {
             return UserType.ADMIN;
-        } else if (users.contains(currentUser)) {
+        } else if ((roles & MembershipIndex.USER_BIT) != 0) {
             return UserType.USER;
         } else {
             return UserType.NONE;
@@ -145,6 +380,110 @@ public class SharedAccount extends Account {
         return super.update(newPassword);
     }
     
+    /**
+     * Refuses an update without a user, since only admins may change the password
+     * Use update(newPassword, currentUser) instead
+     *
+     * @param newPassword, proposed new password
+     * @return Verify.USER_ERROR
+     */
+    @Override
+    public Verify update(String newPassword) {
+        return Verify.USER_ERROR;
+    }
+
+    /**
+     * Refuses a versioned update without a user, since only admins may change the password
+     * Use update(newPassword, currentUser, expectedVersion) instead
+     *
+     * @param newPassword, proposed new password
+     * @param expectedVersion, the version the caller read with getVersion
+     * @return Verify.USER_ERROR
+     */
+    @Override
+    public Verify update(String newPassword, long expectedVersion) {
+        return Verify.USER_ERROR;
+    }
+
+    /**
+     * Updates account password (admin-only operation) only if nobody changed it since expectedVersion
+     *
+     * @param newPassword, proposed new password
+     * @param currentUser, user attempting change (must be admin)
+     * @param expectedVersion, the version the admin read with getVersion
+     * @return Verify.CORRECT if successful, Verify.USER_ERROR if currentUser lacks permissions,
+     *         Verify.INCORRECT if new password fails verification,
+     *         Verify.CONFLICT if another update happened since expectedVersion
+     */
+    public Verify update(String newPassword, User currentUser, long expectedVersion) {
+        if (verifyUser(currentUser) != UserType.ADMIN) {
+            return Verify.USER_ERROR;
+        }
+        return super.update(newPassword, expectedVersion);
+    }
+    
+    /**
+     * Updates a sealed account password from its plaintext (admin-only operation), as Account.update(newPassword, ring)
+     *
+     * @param newPassword, proposed new password, in plaintext
+     * @param currentUser, user attempting change (must be admin)
+     * @param ring, the keys the password is opened and sealed with
+     * @return Verify.CORRECT if successful, Verify.USER_ERROR if currentUser lacks permissions,
+     *         Verify.INCORRECT if new password fails verification
+     */
+    public Verify update(String newPassword, User currentUser, KeyRing ring) {
+        if (verifyUser(currentUser) != UserType.ADMIN) {
+            return Verify.USER_ERROR;
+        }
+        return super.update(newPassword, ring);
+    }
+
+    /**
+     * Updates a sealed account password from its plaintext (admin-only operation) only if nobody changed it
+     * since expectedVersion
+     *
+     * @param newPassword, proposed new password, in plaintext
+     * @param currentUser, user attempting change (must be admin)
+     * @param ring, the keys the password is opened and sealed with
+     * @param expectedVersion, the version the admin read with getVersion
+     * @return Verify.CORRECT if successful, Verify.USER_ERROR if currentUser lacks permissions,
+     *         Verify.INCORRECT if new password fails verification,
+     *         Verify.CONFLICT if another update happened since expectedVersion
+     */
+    public Verify update(String newPassword, User currentUser, KeyRing ring, long expectedVersion) {
+        if (verifyUser(currentUser) != UserType.ADMIN) {
+            return Verify.USER_ERROR;
+        }
+        return super.update(newPassword, ring, expectedVersion);
+    }
+
+    /**
+     * Refuses a sealed update without a user, since only admins may change the password
+     * Use update(newPassword, currentUser, ring) instead
+     *
+     * @param newPassword, proposed new password, in plaintext
+     * @param ring, the keys the password is opened and sealed with
+     * @return Verify.USER_ERROR
+     */
+    @Override
+    public Verify update(String newPassword, KeyRing ring) {
+        return Verify.USER_ERROR;
+    }
+
+    /**
+     * Refuses a versioned sealed update without a user, since only admins may change the password
+     * Use update(newPassword, currentUser, ring, expectedVersion) instead
+     *
+     * @param newPassword, proposed new password, in plaintext
+     * @param ring, the keys the password is opened and sealed with
+     * @param expectedVersion, the version the caller read with getVersion
+     * @return Verify.USER_ERROR
+     */
+    @Override
+    public Verify update(String newPassword, KeyRing ring, long expectedVersion) {
+        return Verify.USER_ERROR;
+    }
+
     /** Functional interface for operations */
     @FunctionalInterface
     private interface Operation {
@@ -0,0 +1,267 @@
+package PasswordManager;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Table-driven password entropy estimator
+ * A password is split into the cheapest sequence of patterns: single characters guessed from the policy's
+ * character pools, repeats, alphabetic or numeric sequences, keyboard walks and dictionary words.
+ * Everything a lookup needs is worked out up front: a keyboard adjacency table, a table folding letters,
+ * case and common substitutions onto 26 letter codes, and a dictionary trie stored as one dense
+ * child array. Estimating is then a single dynamic programming pass over the password
+ */
+final class StrengthEstimator {
+    private static final int LETTERS = 26;
+    private static final int MIN_PATTERN = 3;
+    private static final int KEYBOARD_KEYS = 47;
+    private static final String[] KEYBOARD_ROWS = {
+            "`1234567890-=", "~!@#$%^&*()_+",
+            "qwertyuiop[]\\", "QWERTYUIOP{}|",
+            "asdfghjkl;'", "ASDFGHJKL:\"",
+            "zxcvbnm,./", "ZXCVBNM<>?"};
+    private static final String[] COMMON_WORDS = {
+            "password", "qwerty", "dragon", "monkey", "letmein", "football", "baseball", "welcome", "admin",
+            "login", "princess", "master", "sunshine", "shadow", "iloveyou", "trustno", "superman", "batman",
+            "hello", "freedom", "whatever", "michael", "jennifer", "jordan", "hunter", "ranger", "buster",
+            "soccer", "hockey", "killer", "george", "charlie", "andrew", "thomas", "summer", "winter", "spring",
+            "autumn", "secret", "access", "flower", "pepper", "cookie", "orange", "banana", "apple", "cheese",
+            "computer", "internet", "starwars", "pokemon", "matrix", "love", "test", "pass", "user", "root",
+            "guest", "changeme", "default", "money", "family", "friend", "dog", "cat", "god"};
+
+    private static final short[] KEY_X = new short[128];     // half-key column of each key, -1 if not on the keyboard
+    private static final byte[] KEY_ROW = new byte[128];     // keyboard row of each key
+    private static final boolean[] SHIFTED = new boolean[128];
+    private static final byte[] LETTER = new byte[128];      // letter code 0-25 of each character, -1 if none
+    private static final boolean[] SUBSTITUTED = new boolean[128]; // true for digits and symbols read as letters
+    private static final double[] LOG2 = new double[1024];
+
+    static {
+        Arrays.fill(KEY_X, (short) -1);
+        int[] offsets = {0, 3, 4, 5};
+        for (int r = 0; r < KEYBOARD_ROWS.length; r++) {
+            String row = KEYBOARD_ROWS[r];
+            for (int c = 0; c < row.length(); c++) {
+                char key = row.charAt(c);
+                KEY_X[key] = (short) (2 * c + offsets[r / 2]);
+                KEY_ROW[key] = (byte) (r / 2);
+                SHIFTED[key] = r % 2 == 1;
+            }
+        }
+        Arrays.fill(LETTER, (byte) -1);
+        for (char c = 'a'; c <= 'z'; c++) {
+            LETTER[c] = (byte) (c - 'a');
+            LETTER[Character.toUpperCase(c)] = (byte) (c - 'a');
+        }
+        String substitutions = "4a@a8b3e6g1i!i0o5s$s7t+t2z";
+        for (int i = 0; i < substitutions.length(); i += 2) {
+            LETTER[substitutions.charAt(i)] = (byte) (substitutions.charAt(i + 1) - 'a');
+            SUBSTITUTED[substitutions.charAt(i)] = true;
+        }
+        for (int i = 1; i < LOG2.length; i++) {
+            LOG2[i] = Math.log(i) / Math.log(2);
+        }
+    }
+
+    static final StrengthEstimator DEFAULT = new StrengthEstimator(Arrays.asList(COMMON_WORDS));
+
+    private int[] children;  // LETTERS child node indices per node, 0 for none (the root is never a child)
+    private int[] wordRank;  // rank of the word ending at each node, 0 if none, otherwise 1 for the most common
+    private int nodes;
+
+    /**
+     * @param words dictionary words, most common first, folded to letters (others are skipped)
+     */
+    StrengthEstimator(Collection<String> words) {
+        children = new int[LETTERS * 64];
+        wordRank = new int[64];
+        nodes = 1;
+        int rank = 0;
+        for (String word : words) {
+            rank++;
+            insert(word, rank);
+        }
+        children = Arrays.copyOf(children, nodes * LETTERS);
+        wordRank = Arrays.copyOf(wordRank, nodes);
+    }
+
+    /**
+     * @param words more dictionary words, most common first
+     * @return a new estimator knowing the default words followed by the given words
+     */
+    static StrengthEstimator withWords(Collection<String> words) {
+        String[] all = Arrays.copyOf(COMMON_WORDS, COMMON_WORDS.length + words.size());
+        int i = COMMON_WORDS.length;
+        for (String word : words) {
+            all[i++] = word;
+        }
+        return new StrengthEstimator(Arrays.asList(all));
+    }
+
+    /**
+     * @param password the password to estimate
+     * @param policy the policy the password is chosen under, giving the size of each character pool
+     * @return the estimated strength
+     */
+    PasswordStrength estimate(String password, PolicySnapshot policy) {
+        int n = password.length();
+        if (n == 0) {
+            return new PasswordStrength(0);
+        }
+        double charBits = log2(poolSize(password, policy));
+        double[] best = new double[n + 1];
+        Arrays.fill(best, 1, n + 1, Double.MAX_VALUE);
+        int[] repeat = new int[n];
+        int[] sequence = new int[n];
+        int[] walk = new int[n];
+        repeat[n - 1] = sequence[n - 1] = walk[n - 1] = 1;
+        for (int i = n - 2; i >= 0; i--) {
+            char c = password.charAt(i);
+            char next = password.charAt(i + 1);
+            repeat[i] = c == next ? repeat[i + 1] + 1 : 1;
+            int step = next - c;
+            boolean stepContinues = i + 2 >= n || password.charAt(i + 2) - next == step;
+            sequence[i] = (step == 1 || step == -1) && sameClass(c, next)
+                    ? (stepContinues ? sequence[i + 1] + 1 : 2) : 1;
+            walk[i] = adjacent(c, next) ? walk[i + 1] + 1 : 1;
+        }
+        for (int i = 0; i < n; i++) {
+            double base = best[i];
+            relax(best, i + 1, base + charBits);
+            for (int length = MIN_PATTERN; length <= repeat[i]; length++) {
+                relax(best, i + length, base + charBits + log2(length));
+            }
+            if (sequence[i] >= MIN_PATTERN) {
+                char start = password.charAt(i);
+                boolean descending = password.charAt(i + 1) < start;
+                double startBits = "aAzZ019".indexOf(start) >= 0 ? 2 : Character.isDigit(start) ? log2(10) : log2(26);
+                for (int length = MIN_PATTERN; length <= sequence[i]; length++) {
+                    relax(best, i + length, base + startBits + log2(length) + (descending ? 1 : 0));
+                }
+            }
+            if (walk[i] >= MIN_PATTERN) {
+                int shifts = 0;
+                for (int length = 1; length <= walk[i]; length++) {
+                    char c = password.charAt(i + length - 1);
+                    if (c < 128 && SHIFTED[c]) {
+                        shifts++;
+                    }
+                    if (length >= MIN_PATTERN) {
+                        relax(best, i + length, base + log2(KEYBOARD_KEYS) + (length - 1)
+                                + (shifts > 0 ? log2(length + 1) : 0));
+                    }
+                }
+            }
+            matchWords(password, i, best);
+        }
+        return new PasswordStrength(best[n]);
+    }
+
+    private void matchWords(String password, int start, double[] best) {
+        int node = 0;
+        int uppers = 0;
+        int substitutions = 0;
+        for (int j = start; j < password.length(); j++) {
+            char c = password.charAt(j);
+            int letter = c < 128 ? LETTER[c] : -1;
+            if (letter < 0) {
+                return;
+            }
+            node = children[node * LETTERS + letter];
+            if (node == 0) {
+                return;
+            }
+            if (Character.isUpperCase(c)) {
+                uppers++;
+            } else if (SUBSTITUTED[c]) {
+                substitutions++;
+            }
+            int length = j - start + 1;
+            if (wordRank[node] != 0 && length >= MIN_PATTERN) {
+                double bits = log2(wordRank[node] + 1);
+                if (uppers > 0) {
+                    bits += uppers == 1 && Character.isUpperCase(password.charAt(start)) ? 1 : log2(length) + 1;
+                }
+                if (substitutions > 0) {
+                    bits += substitutions + 1;
+                }
+                relax(best, j + 1, best[start] + bits);
+            }
+        }
+    }
+
+    private void insert(String word, int rank) {
+        int node = 0;
+        for (int i = 0; i < word.length(); i++) {
+            char c = word.charAt(i);
+            int letter = c < 128 ? LETTER[c] : -1;
+            if (letter < 0 || SUBSTITUTED[c]) {
+                return;
+            }
+            int slot = node * LETTERS + letter;
+            if (children[slot] == 0) {
+                if (nodes == wordRank.length) {
+                    wordRank = Arrays.copyOf(wordRank, nodes * 2);
+                    children = Arrays.copyOf(children, nodes * 2 * LETTERS);
+                }
+                children[slot] = nodes++;
+            }
+            node = children[slot];
+        }
+        if (wordRank[node] == 0) {
+            wordRank[node] = rank;
+        }
+    }
+
+    private static int poolSize(String password, PolicySnapshot policy) {
+        boolean lower = false;
+        boolean upper = false;
+        boolean num = false;
+        boolean special = false;
+        boolean other = false;
+        for (int i = 0; i < password.length(); i++) {
+            char c = password.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                lower = true;
+            } else if (c >= 'A' && c <= 'Z') {
+                upper = true;
+            } else if (c >= '0' && c <= '9') {
+                num = true;
+            } else if (c < 128 && KEY_X[c] >= 0) {
+                special = true;
+            } else {
+                other = true;
+            }
+        }
+        int size = (lower ? policy.lower.length : 0) + (upper ? policy.upper.length : 0)
+                + (num ? policy.nums.length : 0) + (special ? policy.special.length : 0);
+        if (other) {
+            size = Math.max(size + 1, policy.allowed.length);
+        }
+        return Math.max(size, 2);
+    }
+
+    private static boolean sameClass(char a, char b) {
+        return (Character.isDigit(a) && Character.isDigit(b)) || (Character.isLowerCase(a) && Character.isLowerCase(b))
+                || (Character.isUpperCase(a) && Character.isUpperCase(b));
+    }
+
+    private static boolean adjacent(char a, char b) {
+        if (a >= 128 || b >= 128 || KEY_X[a] < 0 || KEY_X[b] < 0) {
+            return false;
+        }
+        int dx = Math.abs(KEY_X[a] - KEY_X[b]);
+        int dy = Math.abs(KEY_ROW[a] - KEY_ROW[b]);
+        return (dy == 0 && dx == 2) || (dy == 1 && dx == 1);
+    }
+
+    private static void relax(double[] best, int end, double bits) {
+        if (bits < best[end]) {
+            best[end] = bits;
+        }
+    }
+
+    private static double log2(int value) {
+        return value < LOG2.length ? LOG2[value] : Math.log(value) / Math.log(2);
+    }
+}
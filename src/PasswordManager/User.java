@@ -1,7 +1,12 @@
 package PasswordManager;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * @Author Ashton Gabbeitt
@@ -9,14 +14,36 @@ import java.util.HashMap;
  */
 public class User {
 
+    private final long id; // stable across renames and restarts, identifies the User in equals and hashCode
     private String username;
     private String password;
-    private HashMap<String, Account> passwords;
+    private ConcurrentHashMap<String, AccountSlot> passwords; // concurrent, so background jobs can walk it during edits
+    private Journal journal; // null unless the User belongs to a journaled system
+    private MembershipIndex index; // the membership index of the User's system, null unless it belongs to one
 
     public User(String username, String password) {
+        this(BufferedRandom.current().nextLong(), username, password);
+    }
+
+    /**
+     * Restores a User under its saved id
+     * @param id the id the User was created with
+     * @param username the username for the User
+     * @param password the stored password for the User
+     */
+    User(long id, String username, String password) {
+        this.id = id;
         this.username = username;
         this.password = password;
-        passwords = new HashMap<>();
+        passwords = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Retrieves the stable id of the User, which SharedAccount memberships are kept under
+     * @return the id of the User
+     */
+    public long getId() {
+        return id;
     }
 
     /**
@@ -57,7 +84,30 @@ public class User {
      * @param account the account to be added
      */
     public void addAccount(String label, Account account) {
-        passwords.put(label, account);
+        if (journal != null) {
+            journal.logAccount(true, username, label, account);
+        }
+        unregister(passwords.put(label, new AccountSlot(bound(label, account))), account);
+    }
+
+    /**
+     * Adds an account that is only decoded from its stored form the first time it is used
+     * @param label the label for the account, to be used as the identifier (key)
+     * @param stored the stored form of the account
+     * @param decoder decodes the stored form
+     */
+    void addStoredAccount(String label, byte[] stored, Function<byte[], Account> decoder) {
+        passwords.put(label, new AccountSlot(stored, decoder));
+    }
+
+    /**
+     * Retrieves the stored form of an account that has not been decoded, without decoding it
+     * @param label of the Account to look for
+     * @return the stored form, or null if the account is decoded or does not exist
+     */
+    byte[] getStoredAccount(String label) {
+        AccountSlot slot = passwords.get(label);
+        return slot == null ? null : slot.stored();
     }
 
     /**
@@ -66,7 +116,10 @@ public class User {
      * @param account the new Account to be added
      */
     public void editAccount(String label, Account account){
-        passwords.put(label, account);
+        if (journal != null) {
+            journal.logAccount(false, username, label, account);
+        }
+        unregister(passwords.put(label, new AccountSlot(bound(label, account))), account);
     }
 
     /**
@@ -74,7 +127,10 @@ public class User {
      * @param label the label for the account to be deleted
      */
     public void deleteAccount(String label){
-        passwords.remove(label);
+        if (journal != null) {
+            journal.logDeleteAccount(username, label);
+        }
+        unregister(passwords.remove(label), null);
     }
 
     /**
@@ -83,7 +139,8 @@ public class User {
      * @return Account if exists, null otherwise
      */
     public Account getAccount(String label) {
-        return passwords.get(label);
+        AccountSlot slot = passwords.get(label);
+        return slot == null ? null : bound(label, slot.get());
     }
 
     /**
@@ -91,7 +148,134 @@ public class User {
      * @return a list of all Accounts from the User's list of accounts
      */
     public ArrayList<Account> getAllAccounts() {
-        return new ArrayList<>(passwords.values());
+        ArrayList<Account> accounts = new ArrayList<>(passwords.size());
+        for (Map.Entry<String, AccountSlot> entry : passwords.entrySet()) {
+            accounts.add(bound(entry.getKey(), entry.getValue().get()));
+        }
+        return accounts;
+    }
+
+    /**
+     * Streams the User's accounts without copying them into a list
+     * Accounts are only decoded as the stream reaches them, so taking one page
+     * with skip and limit only decodes that page
+     * @return a stream of all Accounts from the User's list of accounts
+     */
+    public Stream<Account> accounts() {
+        return passwords.entrySet().stream().map(entry -> bound(entry.getKey(), entry.getValue().get()));
+    }
+
+    /**
+     * Retrieves the labels of the User's accounts without decoding any of them
+     * @return a read-only view of the account labels, safe to iterate while accounts are added or deleted
+     */
+    public Set<String> getAccountLabels() {
+        return Collections.unmodifiableSet(passwords.keySet());
+    }
+
+    /**
+     * Retrieves the number of accounts the User has
+     * @return the number of accounts
+     */
+    public int getAccountCount() {
+        return passwords.size();
+    }
+
+    /**
+     * Ties the User's accounts to a system from now on: changes to them are logged to its journal and its
+     * shared accounts are listed in its membership index. A User leaving a system is attached to no journal
+     * and MembershipIndex.DETACHED. Changes made while the username differs from the one the system holds
+     * the User under are lost on replay
+     * @param journal the journal of the User's system, or null if it has none
+     * @param index the membership index of the User's system
+     */
+    void attach(Journal journal, MembershipIndex index) {
+        this.journal = journal;
+        this.index = index;
+        for (Map.Entry<String, AccountSlot> entry : passwords.entrySet()) {
+            bound(entry.getKey(), entry.getValue().peek());
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof User && ((User) o).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id);
+    }
+
+    /**
+     * Drops a replaced or deleted shared account from its MembershipIndex, if it was ever decoded
+     */
+    private static void unregister(AccountSlot slot, Account replacement) {
+        Account account = slot == null ? null : slot.peek();
+        if (account instanceof SharedAccount && account != replacement) {
+            ((SharedAccount) account).unregister();
+        }
+    }
+
+    private Account bound(String label, Account account) {
+        if (account != null && (journal != null || index != null)) {
+            account.bind(journal, username, label); // a null journal unbinds an account whose User left its system
+        }
+        if (index != null && account instanceof SharedAccount) {
+            ((SharedAccount) account).attach(index);
+        }
+        return account;
+    }
+
+    /**
+     * An Account of the User, either decoded or still in its stored form
+     * Decoding a SharedAccount looks its members up in the system, which takes the system's locks, so it
+     * runs outside the slot's lock; if two threads decode at once, the first account installed is kept
+     */
+    private static final class AccountSlot {
+        private Account account;
+        private byte[] stored; // null once the account is decoded
+        private final Function<byte[], Account> decoder;
+
+        AccountSlot(Account account) {
+            this.account = account;
+            this.decoder = null;
+        }
+
+        AccountSlot(byte[] stored, Function<byte[], Account> decoder) {
+            this.stored = stored;
+            this.decoder = decoder;
+        }
+
+        synchronized Account peek() {
+            return account;
+        }
+
+        synchronized byte[] stored() {
+            return stored;
+        }
+
+        Account get() {
+            byte[] bytes;
+            synchronized (this) {
+                if (stored == null) {
+                    return account;
+                }
+                bytes = stored;
+            }
+            Account decoded = decoder.apply(bytes);
+            synchronized (this) {
+                if (stored == bytes) {
+                    account = decoded;
+                    stored = null;
+                    return account;
+                }
+            }
+            if (decoded instanceof SharedAccount) {
+                ((SharedAccount) decoded).unregister(); // another thread's copy was installed first
+            }
+            return peek();
+        }
     }
 
 }
@@ -0,0 +1,700 @@
+package PasswordManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Append-only on-disk store for the Users and Accounts of a PasswordSystem
+ * Every change is appended to the file as a small binary record. On open the file is memory-mapped
+ * and only the record keys are read to build an index, so a User is decoded on its first lookup
+ * rather than at start up, and its accounts on their first use. Passwords are stored exactly as User and Account hold them, already
+ * encrypted by the system. A User is written as its USER record, one ACCOUNT record per account and a
+ * COMMIT record, and a snapshot cut short by a crash is dropped whole on open, so a User is never read back
+ * with only some of its accounts. Besides the record keys, opening the file reads the member ids of each
+ * shared account, so the shared accounts of a user can be found without decoding every User. Superseded
+ * records stay in the file until compact() rewrites it with only the live records. A single mapping is
+ * limited to 2GB, so that is also the limit on the file size
+ */
+public final class VaultStore implements Closeable {
+    private static final int MAGIC = 0x504D5653; // "PMVS"
+    private static final short VERSION = 4;
+    private static final int FILE_HEADER_SIZE = 6;
+
+    private static final byte USER = 1;           // username, password, id; starts a new snapshot of the user's accounts
+    private static final byte ACCOUNT = 2;        // owner, label, kind, account fields
+    private static final byte DELETE_USER = 3;    // username
+    private static final byte DELETE_ACCOUNT = 4; // owner, label
+    private static final byte ADMIN = 5;          // username, 1 if an administrator otherwise 0
+    private static final byte COMMIT = 6;         // username; ends the snapshot its USER record started
+
+    private static final long MIN_COMPACTION_BYTES = 1 << 20;
+
+    private final Path file;
+    private final PasswordVerifier verifier;
+    private final Map<String, Entry> index = new HashMap<String, Entry>();
+    private final Map<Long, String> names = new HashMap<Long, String>(); // username of each stored User id
+    private final Map<Long, Set<SharedLocation>> sharedWith = new HashMap<Long, Set<SharedLocation>>(); // by member id
+    private FileChannel channel;
+    private MappedByteBuffer map;
+    private long end;
+    private long deadBytes;
+    private ScheduledExecutorService compactor;
+
+    /** Location of a record in the file */
+    private static class Location {
+        final long offset;
+        final int size;
+
+        Location(long offset, int size) {
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    /** Location of a live shared account record, listed under each of its members in sharedWith */
+    private static final class SharedLocation extends Location {
+        final String owner;
+        final String label;
+        final long[] members;
+
+        SharedLocation(Location location, String owner, String label, long[] members) {
+            super(location.offset, location.size);
+            this.owner = owner;
+            this.label = label;
+            this.members = members;
+        }
+    }
+
+    /** Live records of one user */
+    private static final class Entry {
+        long id;
+        Location user;
+        Location commit;
+        Location admin;
+        final Map<String, Location> accounts = new LinkedHashMap<String, Location>();
+    }
+
+    private VaultStore(Path file, PasswordVerifier verifier) {
+        this.file = file;
+        this.verifier = verifier;
+    }
+
+    /**
+     * Opens a vault file, creating it if it does not exist
+     * A record left half written by a crash is dropped from the end of the file
+     * @param file the vault file
+     * @param verifier the password policy given to Accounts read back from the file
+     * @return the opened store
+     * @throws IOException if the file cannot be opened or is not a vault file
+     */
+    public static VaultStore open(Path file, PasswordVerifier verifier) throws IOException {
+        VaultStore store = new VaultStore(file, verifier);
+        store.load();
+        return store;
+    }
+
+    /**
+     * Writes a User and all of its Accounts, replacing anything stored under the username
+     * Accounts that were never decoded are written back in their stored form, without decoding them
+     * @param user the user to be written
+     */
+    public synchronized void putUser(User user) {
+        try {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            RecordCodec.writeRecord(records, USER, out -> {
+                RecordCodec.writeString(out, user.getUsername());
+                RecordCodec.writeString(out, user.getPassword());
+                out.writeLong(user.getId());
+            });
+            for (String label : user.getAccountLabels()) {
+                byte[] stored = user.getStoredAccount(label);
+                if (stored != null) {
+                    RecordCodec.writeRecord(records, ACCOUNT, out -> {
+                        RecordCodec.writeString(out, user.getUsername());
+                        RecordCodec.writeString(out, label);
+                        out.write(stored);
+                    });
+                    continue;
+                }
+                Account account = user.getAccount(label); // already decoded, so no members are looked up
+                if (account != null) {
+                    RecordCodec.writeRecord(records, ACCOUNT, out -> writeAccount(out, user.getUsername(), label, account));
+                }
+            }
+            RecordCodec.writeRecord(records, COMMIT, out -> RecordCodec.writeString(out, user.getUsername()));
+            appendAndIndex(records.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes one Account of a stored User, replacing any account stored under the label
+     * @param owner the username of the User holding the account
+     * @param label the label of the account
+     * @param account the account to be written
+     */
+    public synchronized void putAccount(String owner, String label, Account account) {
+        appendRecord(ACCOUNT, out -> writeAccount(out, owner, label, account));
+    }
+
+    /**
+     * Removes one Account of a stored User
+     * @param owner the username of the User holding the account
+     * @param label the label of the account
+     */
+    public synchronized void deleteAccount(String owner, String label) {
+        appendRecord(DELETE_ACCOUNT, out -> {
+            RecordCodec.writeString(out, owner);
+            RecordCodec.writeString(out, label);
+        });
+    }
+
+    /**
+     * Removes a User and all of its Accounts
+     * @param username of the user to be removed
+     */
+    public synchronized void deleteUser(String username) {
+        appendRecord(DELETE_USER, out -> RecordCodec.writeString(out, username));
+    }
+
+    /**
+     * Records whether a stored User is a system administrator
+     * @param username of the user
+     * @param admin true if the user is an administrator, otherwise false
+     */
+    public synchronized void putAdmin(String username, boolean admin) {
+        appendRecord(ADMIN, out -> {
+            RecordCodec.writeString(out, username);
+            out.writeByte(admin ? 1 : 0);
+        });
+    }
+
+    /**
+     * @param username to look for
+     * @return true if a User is stored under the username, otherwise false
+     */
+    public synchronized boolean contains(String username) {
+        Entry entry = index.get(username);
+        return entry != null && entry.user != null;
+    }
+
+    /**
+     * @param username to look for
+     * @return true if the stored User is a system administrator, otherwise false
+     */
+    public synchronized boolean isAdmin(String username) {
+        Entry entry = index.get(username);
+        if (entry == null || entry.admin == null) {
+            return false;
+        }
+        ByteBuffer record = read(entry.admin);
+        RecordCodec.readString(record);
+        return record.get() == 1;
+    }
+
+    /**
+     * @return the usernames of every stored User
+     */
+    public synchronized Set<String> usernames() {
+        Set<String> usernames = new HashSet<String>();
+        for (Map.Entry<String, Entry> entry : index.entrySet()) {
+            if (entry.getValue().user != null) {
+                usernames.add(entry.getKey());
+            }
+        }
+        return usernames;
+    }
+
+    /**
+     * Decodes a stored User
+     * Its accounts are copied out of the file but only decoded the first time each one is used, outside
+     * the store's lock, so members may be looked up through a PasswordSystem backed by this store
+     * @param username of the user to be decoded
+     * @param members looks up the members of shared accounts by User id when they are decoded
+     * @return the User, or null if username is not stored
+     */
+    public synchronized User loadUser(String username, LongFunction<User> members) {
+        Entry entry = index.get(username);
+        if (entry == null || entry.user == null) {
+            return null;
+        }
+        ByteBuffer record = read(entry.user);
+        String name = RecordCodec.readString(record);
+        String password = RecordCodec.readString(record);
+        User user = new User(record.getLong(), name, password);
+        for (Map.Entry<String, Location> account : entry.accounts.entrySet()) {
+            ByteBuffer payload = read(account.getValue());
+            RecordCodec.readString(payload); // owner
+            RecordCodec.readString(payload); // label
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            user.addStoredAccount(account.getKey(), bytes,
+                    stored -> RecordCodec.readAccount(ByteBuffer.wrap(stored), verifier, members));
+        }
+        return user;
+    }
+
+    /**
+     * @param userId the id of a User
+     * @return the username the User is stored under, or null if it is not stored
+     */
+    synchronized String usernameOf(long userId) {
+        return names.get(userId);
+    }
+
+    /**
+     * Finds the stored shared accounts a User is a member of, without decoding them
+     * @param userId the id of the member
+     * @return the labels of the accounts, by the username of the User holding them
+     */
+    synchronized Map<String, List<String>> sharedAccountLabels(long userId) {
+        Map<String, List<String>> labels = new HashMap<String, List<String>>();
+        Set<SharedLocation> accounts = sharedWith.get(userId);
+        if (accounts != null) {
+            for (SharedLocation account : accounts) {
+                labels.computeIfAbsent(account.owner, owner -> new ArrayList<String>()).add(account.label);
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Rewrites the stored password of a User and of each of its Accounts, without decoding the User
+     * The rewritten user is appended as a new snapshot, leaving its other fields and records as they are
+     * @param username of the user
+     * @param userRewrite maps the User's password to its replacement, or to null to leave it
+     * @param accountRewrite maps an Account's password to its replacement, or to null to leave it
+     * @return true if any password was replaced, false if none was or the user is not stored
+     */
+    public synchronized boolean rewritePasswords(String username, UnaryOperator<String> userRewrite,
+            UnaryOperator<String> accountRewrite) {
+        Entry entry = index.get(username);
+        if (entry == null || entry.user == null) {
+            return false;
+        }
+        try {
+            ByteBuffer record = read(entry.user);
+            String name = RecordCodec.readString(record);
+            String password = RecordCodec.readString(record);
+            long id = record.getLong();
+            String replacement = password == null ? null : userRewrite.apply(password);
+            boolean changed = replacement != null;
+            ByteArrayOutputStream accounts = new ByteArrayOutputStream();
+            for (Map.Entry<String, Location> account : entry.accounts.entrySet()) {
+                ByteBuffer payload = read(account.getValue());
+                RecordCodec.readString(payload); // owner
+                RecordCodec.readString(payload); // label
+                byte[] rewritten = RecordCodec.rewritePassword(payload, accountRewrite);
+                if (rewritten == null) {
+                    rewritten = new byte[payload.remaining()];
+                    payload.get(rewritten);
+                } else {
+                    changed = true;
+                }
+                byte[] fields = rewritten;
+                RecordCodec.writeRecord(accounts, ACCOUNT, out -> {
+                    RecordCodec.writeString(out, name);
+                    RecordCodec.writeString(out, account.getKey());
+                    out.write(fields);
+                });
+            }
+            if (!changed) {
+                return false;
+            }
+            String stored = replacement == null ? password : replacement;
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            RecordCodec.writeRecord(records, USER, out -> {
+                RecordCodec.writeString(out, name);
+                RecordCodec.writeString(out, stored);
+                out.writeLong(id);
+            });
+            accounts.writeTo(records);
+            RecordCodec.writeRecord(records, COMMIT, out -> RecordCodec.writeString(out, name));
+            appendAndIndex(records.toByteArray());
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the number of bytes in the file taken by superseded records
+     */
+    public synchronized long deadBytes() {
+        return deadBytes;
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    public synchronized long size() {
+        return end;
+    }
+
+    /**
+     * Forces every appended record to the storage device
+     */
+    public synchronized void flush() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Rewrites the file with only its live records
+     * Records are copied as they are, without being decoded
+     */
+    public synchronized void compact() {
+        Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            RecordCodec.writeFully(out, fileHeader(), 0);
+            long position = FILE_HEADER_SIZE;
+            for (Entry entry : index.values()) {
+                if (entry.user != null) { // accounts and commits are only indexed under a stored user
+                    position += copy(entry.user, out, position);
+                    for (Location account : entry.accounts.values()) {
+                        position += copy(account, out, position);
+                    }
+                    if (entry.commit != null) {
+                        position += copy(entry.commit, out, position);
+                    }
+                }
+                if (entry.admin != null) { // kept even before the user itself is stored
+                    position += copy(entry.admin, out, position);
+                }
+            }
+            out.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            channel.close();
+            map = null;
+            Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            load();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Compacts the file once superseded records take up at least half of it
+     * @return true if the file was compacted, otherwise false
+     */
+    public synchronized boolean compactIfNeeded() {
+        if (deadBytes < MIN_COMPACTION_BYTES || deadBytes * 2 < end) {
+            return false;
+        }
+        compact();
+        return true;
+    }
+
+    /**
+     * Starts a background thread that calls compactIfNeeded periodically until the store is closed
+     * @param period time between checks
+     * @param unit the unit of period
+     */
+    public synchronized void scheduleCompaction(long period, TimeUnit unit) {
+        if (compactor != null) {
+            compactor.shutdownNow();
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "vault-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactIfNeeded, period, period, unit);
+    }
+
+    /**
+     * Stops background compaction, forces appended records to disk and closes the file
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            compactor = null;
+        }
+        if (channel.isOpen()) {
+            channel.force(false);
+            channel.close();
+        }
+        map = null;
+    }
+
+    private void load() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index.clear();
+        names.clear();
+        sharedWith.clear();
+        deadBytes = 0;
+        if (channel.size() < FILE_HEADER_SIZE) {
+            channel.truncate(0);
+            RecordCodec.writeFully(channel, fileHeader(), 0);
+        }
+        end = channel.size();
+        remap();
+        if (map.getInt(0) != MAGIC || map.getShort(4) != VERSION) {
+            channel.close();
+            throw new IOException(file + " is not a version " + VERSION + " vault file");
+        }
+        long position = FILE_HEADER_SIZE;
+        long last = -1;    // start of the last record, or of the last snapshot if that ended the file
+        long pending = -1; // start of a snapshot whose COMMIT has not been read yet
+        while (position + RecordCodec.RECORD_HEADER_SIZE <= end) {
+            int length = map.getInt((int) position);
+            if (length < 0 || position + RecordCodec.RECORD_HEADER_SIZE + length > end) {
+                break;
+            }
+            byte type = map.get((int) position + 8);
+            if (type == USER) {
+                pending = position;
+            }
+            last = pending >= 0 ? pending : position;
+            if (type == COMMIT) {
+                pending = -1;
+            }
+            position += RecordCodec.RECORD_HEADER_SIZE + length;
+        }
+        if (pending >= 0) {
+            // a crash cut a snapshot short; the user's previous snapshot is still whole
+            position = pending;
+        } else if (last >= 0 && !checksumsMatch(last, position)) {
+            position = last;
+        }
+        if (position < end) {
+            // a crash left part of a record or snapshot at the end of the file
+            channel.truncate(position);
+            end = position;
+            remap();
+        }
+        indexRecords(map, FILE_HEADER_SIZE, FILE_HEADER_SIZE, end);
+    }
+
+    private void remap() throws IOException {
+        map = channel.map(FileChannel.MapMode.READ_ONLY, 0, end);
+    }
+
+    private static ByteBuffer fileHeader() {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).flip();
+        return header;
+    }
+
+    /**
+     * Adds the records between start and stop in the file to the index
+     * @param source buffer holding the records, with the record at start found at sourceStart
+     */
+    private void indexRecords(ByteBuffer source, int sourceStart, long start, long stop) {
+        for (long offset = start; offset < stop; ) {
+            int at = (int) (sourceStart + offset - start);
+            Location location = new Location(offset, RecordCodec.RECORD_HEADER_SIZE + source.getInt(at));
+            ByteBuffer record = source.duplicate();
+            record.position(at + RecordCodec.RECORD_HEADER_SIZE).limit(at + location.size);
+            applyToIndex(location, source.get(at + 8), record.slice());
+            offset += location.size;
+        }
+    }
+
+    private void applyToIndex(Location location, byte type, ByteBuffer record) {
+        switch (type) {
+            case USER: {
+                String username = RecordCodec.readString(record);
+                RecordCodec.readString(record); // password
+                long id = record.getLong();
+                Entry entry = index.computeIfAbsent(username, name -> new Entry());
+                if (entry.user != null) {
+                    names.remove(entry.id, username);
+                }
+                names.put(id, username);
+                entry.id = id;
+                supersede(entry.user);
+                supersede(entry.commit);
+                for (Location account : entry.accounts.values()) {
+                    supersede(account);
+                }
+                entry.accounts.clear();
+                entry.user = location;
+                entry.commit = null;
+                break;
+            }
+            case COMMIT: {
+                Entry entry = index.get(RecordCodec.readString(record));
+                if (entry == null || entry.user == null) {
+                    supersede(location);
+                } else {
+                    supersede(entry.commit);
+                    entry.commit = location;
+                }
+                break;
+            }
+            case ACCOUNT: {
+                String owner = RecordCodec.readString(record);
+                Entry entry = index.get(owner);
+                if (entry == null || entry.user == null) {
+                    supersede(location);
+                    break;
+                }
+                String label = RecordCodec.readString(record);
+                long[] members = RecordCodec.memberIds(record);
+                if (members != null) {
+                    SharedLocation shared = new SharedLocation(location, owner, label, members);
+                    for (long member : members) {
+                        sharedWith.computeIfAbsent(member, id -> new HashSet<SharedLocation>()).add(shared);
+                    }
+                    location = shared;
+                }
+                supersede(entry.accounts.put(label, location));
+                break;
+            }
+            case DELETE_USER: {
+                String username = RecordCodec.readString(record);
+                Entry entry = index.remove(username);
+                if (entry != null) {
+                    if (entry.user != null) {
+                        names.remove(entry.id, username);
+                    }
+                    supersede(entry.user);
+                    supersede(entry.commit);
+                    supersede(entry.admin);
+                    for (Location account : entry.accounts.values()) {
+                        supersede(account);
+                    }
+                }
+                supersede(location);
+                break;
+            }
+            case DELETE_ACCOUNT: {
+                Entry entry = index.get(RecordCodec.readString(record));
+                if (entry != null) {
+                    supersede(entry.accounts.remove(RecordCodec.readString(record)));
+                }
+                supersede(location);
+                break;
+            }
+            case ADMIN: {
+                Entry entry = index.computeIfAbsent(RecordCodec.readString(record), name -> new Entry());
+                supersede(entry.admin);
+                entry.admin = location;
+                break;
+            }
+            default:
+                throw new IllegalStateException("Unknown record type " + type + " at offset " + location.offset);
+        }
+    }
+
+    private void supersede(Location location) {
+        if (location == null) {
+            return;
+        }
+        deadBytes += location.size;
+        if (location instanceof SharedLocation) {
+            SharedLocation shared = (SharedLocation) location;
+            for (long member : shared.members) {
+                Set<SharedLocation> accounts = sharedWith.get(member);
+                if (accounts != null && accounts.remove(shared) && accounts.isEmpty()) {
+                    sharedWith.remove(member);
+                }
+            }
+        }
+    }
+
+    private static void writeAccount(DataOutputStream out, String owner, String label, Account account) throws IOException {
+        RecordCodec.writeString(out, owner);
+        RecordCodec.writeString(out, label);
+        RecordCodec.writeAccount(out, account);
+    }
+
+    private void appendRecord(byte type, RecordCodec.PayloadWriter writer) {
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            RecordCodec.writeRecord(record, type, writer);
+            appendAndIndex(record.toByteArray());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void appendAndIndex(byte[] records) throws IOException {
+        long start = end;
+        RecordCodec.writeFully(channel, ByteBuffer.wrap(records), start);
+        end += records.length;
+        // the mapping is extended lazily, the first time a read reaches past it
+        indexRecords(ByteBuffer.wrap(records), 0, start, end);
+    }
+
+    private long copy(Location location, FileChannel out, long position) throws IOException {
+        if (location.offset + location.size > map.capacity()) {
+            remap();
+        }
+        ByteBuffer record = map.duplicate();
+        record.position((int) location.offset).limit((int) location.offset + location.size);
+        RecordCodec.writeFully(out, record, position);
+        return location.size;
+    }
+
+    private ByteBuffer payload(Location location) {
+        ByteBuffer record = map.duplicate();
+        record.position((int) location.offset + RecordCodec.RECORD_HEADER_SIZE).limit((int) location.offset + location.size);
+        return record.slice();
+    }
+
+    private ByteBuffer read(Location location) {
+        if (location.offset + location.size > map.capacity()) {
+            try {
+                remap();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (!checksumMatches(location)) {
+            throw new IllegalStateException("Corrupt record at offset " + location.offset + " of " + file);
+        }
+        return payload(location);
+    }
+
+    /**
+     * @return true if every record between start and stop in the file has a matching checksum
+     */
+    private boolean checksumsMatch(long start, long stop) {
+        for (long offset = start; offset < stop; ) {
+            Location location = new Location(offset, RecordCodec.RECORD_HEADER_SIZE + map.getInt((int) offset));
+            if (!checksumMatches(location)) {
+                return false;
+            }
+            offset += location.size;
+        }
+        return true;
+    }
+
+    private boolean checksumMatches(Location location) {
+        return RecordCodec.checksum(map.get((int) location.offset + 8), payload(location)) == map.getInt((int) location.offset + 4);
+    }
+}
@@ -0,0 +1,360 @@
+import PasswordManager.*;
+
+import javax.crypto.KeyGenerator;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stress program for the concurrent parts of the PasswordManager
+ * The first phase runs reader threads logging in against writer threads adding, editing and removing the
+ * same users. The second runs readers looking up members and their shared accounts in a reopened
+ * VaultStore against writers saving the owners, while admins make versioned password updates, a member
+ * is added and removed, a subscriber follows a ChangeFeed and a KeyRotation reseals the whole vault.
+ * Each phase prints its throughput; the program exits with status 1 if a check fails or threads deadlock
+ * Usage: java StressTest [readers] [writers] [seconds per phase]
+ */
+public class StressTest {
+    private static final int LOGIN_USERS = 256;
+    private static final int OWNERS = 8;
+    private static final int MEMBERS = 64;
+    private static final int PLAIN_ACCOUNTS = 4;
+    private static final int HASH_ITERATIONS = 10000; // the least PasswordHasher allows, so logins stay cheap
+
+    private static final LongAdder failures = new LongAdder();
+
+    public static void main(String[] args) throws Exception {
+        int readers = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        long millis = TimeUnit.SECONDS.toMillis(args.length > 2 ? Long.parseLong(args[2]) : 5);
+
+        Thread watchdog = new Thread(StressTest::watchForDeadlocks, "deadlock-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+
+        logins(readers, writers, millis);
+        vault(readers, writers, millis);
+
+        if (failures.sum() > 0) {
+            System.out.println("FAILED: " + failures.sum() + " checks failed");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    /**
+     * Readers log in with verifyUser and verifyUserAsync while writers add, edit and remove the users
+     */
+    private static void logins(int readers, int writers, long millis) throws InterruptedException {
+        PasswordSystem sys = new PasswordSystem();
+        sys.setPasswordHasher(new PasswordHasher(HASH_ITERATIONS));
+        sys.setLoginExecutor(new LoginExecutor(Runtime.getRuntime().availableProcessors(), 1024,
+                LoginExecutor.OverflowPolicy.RUN_IN_CALLER));
+        String[] hashes = new String[LOGIN_USERS];
+        for (int i = 0; i < LOGIN_USERS; i++) {
+            hashes[i] = sys.hashPwd(password(i));
+            sys.addUser(new User(username(i), hashes[i]));
+        }
+        LongAdder loginCount = new LongAdder();
+        LongAdder editCount = new LongAdder();
+        long deadline = System.currentTimeMillis() + millis;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int r = 0; r < readers; r++) {
+            threads.add(start("login-reader-" + r, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.currentTimeMillis() < deadline) {
+                    int i = random.nextInt(LOGIN_USERS);
+                    User user = random.nextBoolean() ? sys.verifyUser(username(i), password(i))
+                            : sys.verifyUserAsync(username(i), password(i)).join();
+                    check(user == null || user.getUsername().equals(username(i)),
+                            "login as " + username(i) + " returned " + (user == null ? null : user.getUsername()));
+                    check(sys.verifyUser(username(i), "wrong") == null, "wrong password accepted for " + username(i));
+                    loginCount.add(2);
+                }
+            }));
+        }
+        for (int w = 0; w < writers; w++) {
+            threads.add(start("login-writer-" + w, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.currentTimeMillis() < deadline) {
+                    int i = random.nextInt(LOGIN_USERS);
+                    User current = sys.getUser(username(i));
+                    if (current == null) {
+                        sys.addUser(new User(username(i), hashes[i]));
+                    } else if (random.nextBoolean()) {
+                        sys.editUser(current, new User(username(i), hashes[i]));
+                    } else {
+                        sys.removeUser(current);
+                    }
+                    editCount.increment();
+                }
+            }));
+        }
+        join(threads);
+        Set<String> names = new HashSet<String>();
+        for (User user : sys.getUsers()) {
+            check(names.add(user.getUsername()), "two users held under " + user.getUsername());
+            check(sys.getUser(user.getUsername()) == user, "username index out of step for " + user.getUsername());
+        }
+        sys.getLoginExecutor().close();
+        report("logins", readers, writers, millis, loginCount.sum(), editCount.sum());
+    }
+
+    /**
+     * Readers look up members and their shared accounts in a reopened vault while writers save the owners,
+     * with versioned updates, membership changes, a ChangeFeed subscriber and a KeyRotation running alongside
+     */
+    private static void vault(int readers, int writers, long millis) throws Exception {
+        Path dir = Files.createTempDirectory("stress");
+        Path vaultFile = dir.resolve("vault");
+        Path journalFile = dir.resolve("journal");
+        PasswordVerifier pv = new PasswordVerifier();
+        KeyGenerator keys = KeyGenerator.getInstance("AES");
+        keys.init(256);
+        KeyRing ring = new KeyRing();
+        ring.add(1, keys.generateKey());
+
+        VaultStore store = VaultStore.open(vaultFile, pv);
+        Journal journal = Journal.open(journalFile, pv);
+        PasswordSystem sys = new PasswordSystem(store, journal);
+        sys.setPasswordHasher(new PasswordHasher(HASH_ITERATIONS));
+        Set<User> members = new HashSet<User>();
+        for (int m = 0; m < MEMBERS; m++) {
+            User member = new User(member(m), sys.hashPwd(password(m)));
+            sys.addUser(member);
+            members.add(member);
+        }
+        for (int o = 0; o < OWNERS; o++) {
+            User owner = new User(owner(o), sys.hashPwd(password(o)));
+            sys.addUser(owner);
+            for (int a = 0; a < PLAIN_ACCOUNTS; a++) {
+                owner.addAccount("plain-" + a, new Account("login-" + a, sys.sealPwd("secret-" + o + a, ring), pv));
+            }
+            owner.addAccount("shared", new SharedAccount("team", sys.sealPwd("shared-" + o, ring), pv,
+                    Set.of(owner), members));
+        }
+        sys.checkpoint();
+        store.close();
+        journal.close();
+
+        // reopened, so every user and account starts out in its stored form
+        store = VaultStore.open(vaultFile, pv);
+        journal = Journal.open(journalFile, pv);
+        PasswordSystem vault = new PasswordSystem(store, journal);
+        vault.setPasswordHasher(new PasswordHasher(HASH_ITERATIONS));
+        ring.add(2, keys.generateKey());
+        ring.setPrimary(2);
+        KeyRotation rotation = new KeyRotation(vault, ring, null, 8);
+        CompletableFuture<Void> rotated = rotation.start();
+
+        AtomicLongArray updates = new AtomicLongArray(OWNERS);
+        LongAdder lookupCount = new LongAdder();
+        LongAdder saveCount = new LongAdder();
+        LongAdder conflictCount = new LongAdder();
+        LongAdder changeCount = new LongAdder();
+        long deadline = System.currentTimeMillis() + millis;
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int r = 0; r < readers; r++) {
+            threads.add(start("vault-reader-" + r, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.currentTimeMillis() < deadline) {
+                    User member = vault.getUser(member(1 + random.nextInt(MEMBERS - 1))); // member-0 is churned
+                    Set<SharedAccount> shared = vault.sharedAccountsFor(member);
+                    check(shared.size() == OWNERS, member.getUsername() + " is in " + shared.size() + " shared accounts");
+                    for (SharedAccount account : shared) {
+                        check(account.verifyUser(member) == SharedAccount.UserType.USER,
+                                member.getUsername() + " lost its role");
+                    }
+                    lookupCount.increment();
+                }
+            }));
+        }
+        for (int w = 0; w < writers; w++) {
+            threads.add(start("vault-writer-" + w, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.currentTimeMillis() < deadline) {
+                    vault.saveUser(vault.getUser(owner(random.nextInt(OWNERS))));
+                    saveCount.increment();
+                }
+            }));
+        }
+        for (int u = 0; u < 2; u++) {
+            threads.add(start("vault-updater-" + u, () -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.currentTimeMillis() < deadline) {
+                    int o = random.nextInt(OWNERS);
+                    User owner = vault.getUser(owner(o));
+                    SharedAccount account = (SharedAccount) owner.getAccount("shared");
+                    long version = account.getVersion();
+                    String password = "shared-" + o + "-" + random.nextLong();
+                    Account.Verify result = account.update(password, owner, ring, version);
+                    if (result == Account.Verify.CORRECT) {
+                        updates.incrementAndGet(o);
+                    } else {
+                        check(result == Account.Verify.CONFLICT, "versioned update of " + owner(o) + " gave " + result);
+                        conflictCount.increment();
+                    }
+                }
+            }));
+        }
+        threads.add(start("vault-churn", () -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            User churned = vault.getUser(member(0));
+            while (System.currentTimeMillis() < deadline) {
+                User owner = vault.getUser(owner(random.nextInt(OWNERS)));
+                SharedAccount account = (SharedAccount) owner.getAccount("shared");
+                if (random.nextBoolean()) {
+                    account.addUser(owner, churned);
+                } else {
+                    account.removeUser(owner, churned);
+                }
+            }
+        }));
+        threads.add(start("vault-subscriber", () -> {
+            User member = vault.getUser(member(1));
+            SharedAccount account = (SharedAccount) vault.getUser(owner(0)).getAccount("shared");
+            ChangeFeed.Subscription subscription = account.changes().subscribe(member, 16);
+            check(subscription != null, member.getUsername() + " could not subscribe");
+            long last = -1;
+            try {
+                while (subscription != null && System.currentTimeMillis() < deadline) {
+                    AccountChange change = subscription.poll(100, TimeUnit.MILLISECONDS);
+                    if (change != null) {
+                        check(change.getVersion() > last, "change " + change.getVersion() + " after " + last);
+                        last = change.getVersion();
+                        changeCount.add(change.getChanges());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (subscription != null) {
+                    subscription.close();
+                }
+            }
+        }));
+        join(threads);
+        rotated.get(60, TimeUnit.SECONDS);
+
+        for (int o = 0; o < OWNERS; o++) {
+            SharedAccount account = (SharedAccount) vault.getUser(owner(o)).getAccount("shared");
+            check(account.getVersion() == updates.get(o),
+                    owner(o) + " is at version " + account.getVersion() + " after " + updates.get(o) + " updates");
+        }
+        vault.checkpoint();
+        store.close();
+        journal.close();
+
+        ring.remove(1); // every password must now be sealed with the rotated key
+        store = VaultStore.open(vaultFile, pv);
+        journal = Journal.open(journalFile, pv);
+        PasswordSystem reopened = new PasswordSystem(store, journal);
+        for (int o = 0; o < OWNERS; o++) {
+            User owner = reopened.getUser(owner(o));
+            for (Account account : owner.getAllAccounts()) {
+                try {
+                    reopened.openPwd(account.getPassword(), ring);
+                } catch (RuntimeException e) {
+                    check(false, owner(o) + " has a password the rotation missed: " + e);
+                }
+            }
+            check(owner.getAccount("shared").getVersion() == updates.get(o), owner(o) + " lost its version on reopen");
+        }
+        check(reopened.sharedAccountsFor(reopened.getUser(member(MEMBERS - 1))).size() == OWNERS,
+                "stored memberships lost on reopen");
+        store.close();
+        journal.close();
+
+        report("vault", readers, writers, millis, lookupCount.sum(), saveCount.sum());
+        System.out.printf("  %d versioned updates, %d conflicts, %d changes followed, %d passwords resealed%n",
+                sum(updates), conflictCount.sum(), changeCount.sum(), rotation.getResealed());
+    }
+
+    private static void watchForDeadlocks() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        while (true) {
+            long[] deadlocked = threads.findDeadlockedThreads();
+            if (deadlocked != null) {
+                System.out.println("DEADLOCK:");
+                for (ThreadInfo info : threads.getThreadInfo(deadlocked, true, true)) {
+                    System.out.print(info);
+                }
+                Runtime.getRuntime().halt(1);
+            }
+            try {
+                Thread.sleep(250);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static Thread start(String name, Runnable work) {
+        Thread thread = new Thread(() -> {
+            try {
+                work.run();
+            } catch (RuntimeException e) {
+                check(false, Thread.currentThread().getName() + " threw " + e);
+                e.printStackTrace();
+            }
+        }, name);
+        thread.start();
+        return thread;
+    }
+
+    private static void join(List<Thread> threads) throws InterruptedException {
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            if (failures.sum() < 20) {
+                System.out.println("CHECK FAILED: " + message);
+            }
+            failures.increment();
+        }
+    }
+
+    private static void report(String phase, int readers, int writers, long millis, long reads, long writes) {
+        double seconds = millis / 1000.0;
+        System.out.printf("%s: %d readers, %d writers, %.0f reads/s, %.0f writes/s%n",
+                phase, readers, writers, reads / seconds, writes / seconds);
+    }
+
+    private static long sum(AtomicLongArray values) {
+        long sum = 0;
+        for (int i = 0; i < values.length(); i++) {
+            sum += values.get(i);
+        }
+        return sum;
+    }
+
+    private static String username(int i) {
+        return "user-" + i;
+    }
+
+    private static String member(int i) {
+        return "member-" + i;
+    }
+
+    private static String owner(int i) {
+        return "owner-" + i;
+    }
+
+    private static String password(int i) {
+        return "Pass-" + i + "-word!";
+    }
+}